@@ -0,0 +1,358 @@
+package io.github.petebankhead.bioimage;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Write frames to an animated PNG, encoding only the region that changed since the previous frame.
+ * <p>
+ * The changed region is found by comparing the pixels of consecutive frames, and each frame after the first
+ * is written as a sub-image that replaces that region. Frames without any changes are merged into the
+ * previous frame by extending its delay.
+ * This keeps encoding time and file size proportional to what moved, rather than to the size of the window.
+ * <p>
+ * All frames have the size given when the writer was created;
+ * larger frames are cropped and smaller ones are padded with black.
+ *
+ * @author Pete Bankhead
+ */
+class ApngWriter implements FrameWriter {
+
+	private static final byte[] PNG_SIGNATURE = {(byte)137, 80, 78, 71, 13, 10, 26, 10};
+
+	/**
+	 * Position of the acTL data, which needs to be updated with the frame count on close
+	 */
+	private static final long ACTL_DATA_POSITION = 8 + 25 + 8;
+
+	private static final int FILTER_SUB = 1;
+
+	private final File file;
+	private final int width;
+	private final int height;
+	private final int frameDelayMillis;
+
+	private FileChannel channel;
+	private long position = 0;
+
+	private BufferedImage img;
+	private int[] pixels;
+	private BufferedImage imgPrevious;
+	private int[] pixelsPrevious;
+
+	private final Deflater deflater;
+	private final CRC32 crc = new CRC32();
+	private final byte[] row;
+	private final byte[] deflateBuffer = new byte[64 * 1024];
+	private final ByteBuffer chunkHeader = ByteBuffer.allocate(8);
+	private final ByteBuffer chunkFooter = ByteBuffer.allocate(4);
+	private final ByteBuffer frameControl = ByteBuffer.allocate(26);
+
+	/**
+	 * Compressed data for the most recent frame, which isn't written until we know how long it is displayed
+	 */
+	private final ReusableByteArrayOutputStream pendingData;
+	private final Rectangle pendingBounds = new Rectangle();
+	private final Rectangle changedBounds = new Rectangle();
+	private long pendingDelayMillis = 0;
+	private boolean hasPending = false;
+
+	private int nFrames = 0;
+	private int sequenceNumber = 0;
+
+	/**
+	 * Create a writer, and write the PNG header.
+	 * @param file output file
+	 * @param width frame width
+	 * @param height frame height
+	 * @param fps frame rate at which frames are provided
+	 * @param compressionLevel deflate compression level, from 0 to 9
+	 * @throws IOException
+	 */
+	ApngWriter(File file, int width, int height, double fps, int compressionLevel) throws IOException {
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Frame size must be positive, but was " + width + "x" + height);
+		if (fps <= 0)
+			throw new IllegalArgumentException("Frame rate must be positive, but was " + fps);
+		this.file = file;
+		this.width = width;
+		this.height = height;
+		this.frameDelayMillis = (int)Math.max(1, Math.round(1000.0 / fps));
+
+		img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		pixels = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+		imgPrevious = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		pixelsPrevious = ((DataBufferInt)imgPrevious.getRaster().getDataBuffer()).getData();
+
+		deflater = new Deflater(Math.max(0, Math.min(9, compressionLevel)));
+		row = new byte[width * 3 + 1];
+		pendingData = new ReusableByteArrayOutputStream(width * height);
+
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		write(ByteBuffer.wrap(PNG_SIGNATURE));
+
+		ByteBuffer header = ByteBuffer.allocate(13);
+		header.putInt(width).putInt(height)
+			.put((byte)8) // Bit depth
+			.put((byte)2) // Color type: RGB
+			.put((byte)0) // Compression
+			.put((byte)0) // Filter
+			.put((byte)0) // Interlace
+			.flip();
+		writeChunk("IHDR", header);
+
+		// Number of frames is updated on close; 0 plays means loop forever
+		ByteBuffer control = ByteBuffer.allocate(8).putInt(0).putInt(0);
+		control.flip();
+		writeChunk("acTL", control);
+	}
+
+	@Override
+	public int getFrameCount() {
+		return nFrames;
+	}
+
+	@Override
+	public void writeFrame(BufferedImage frame) throws IOException {
+		if (channel == null)
+			throw new IOException("APNG writer has been closed");
+
+		// Swap buffers, so that we keep the previous frame for comparison
+		BufferedImage tempImg = imgPrevious;
+		int[] tempPixels = pixelsPrevious;
+		imgPrevious = img;
+		pixelsPrevious = pixels;
+		img = tempImg;
+		pixels = tempPixels;
+
+		Graphics2D g2d = img.createGraphics();
+		if (frame.getWidth() < width || frame.getHeight() < height) {
+			g2d.setColor(Color.BLACK);
+			g2d.fillRect(0, 0, width, height);
+		}
+		g2d.drawImage(frame, 0, 0, null);
+		g2d.dispose();
+
+		if (!hasPending) {
+			// First frame is always complete
+			changedBounds.setBounds(0, 0, width, height);
+		} else if (findChangedBounds(changedBounds)) {
+			writePendingFrame();
+		} else {
+			// Nothing changed - just show the previous frame for longer
+			pendingDelayMillis += frameDelayMillis;
+			return;
+		}
+
+		encode(changedBounds, pendingData);
+		pendingBounds.setBounds(changedBounds);
+		pendingDelayMillis = frameDelayMillis;
+		hasPending = true;
+		nFrames++;
+	}
+
+	/**
+	 * Show the last frame for longer, as if it had been written again unchanged.
+	 */
+	@Override
+	public void repeatFrame() throws IOException {
+		if (channel == null)
+			throw new IOException("APNG writer has been closed");
+		if (hasPending)
+			pendingDelayMillis += frameDelayMillis;
+	}
+
+	/**
+	 * Find the bounding box of pixels that differ between the current and previous frames.
+	 * @param bounds rectangle to store the result
+	 * @return true if any pixels changed, false otherwise
+	 */
+	boolean findChangedBounds(Rectangle bounds) {
+		int top = 0;
+		while (top < height && rowEquals(top))
+			top++;
+		if (top == height)
+			return false;
+		int bottom = height - 1;
+		while (bottom > top && rowEquals(bottom))
+			bottom--;
+
+		// We only need to check pixels outside the range we've already found to differ
+		int left = width;
+		int right = -1;
+		for (int y = top; y <= bottom; y++) {
+			int offset = y * width;
+			for (int x = 0; x < left; x++) {
+				if (pixels[offset + x] != pixelsPrevious[offset + x]) {
+					left = x;
+					break;
+				}
+			}
+			for (int x = width - 1; x > right && x >= left; x--) {
+				if (pixels[offset + x] != pixelsPrevious[offset + x]) {
+					right = x;
+					break;
+				}
+			}
+		}
+		bounds.setBounds(left, top, right - left + 1, bottom - top + 1);
+		return true;
+	}
+
+	private boolean rowEquals(int y) {
+		int offset = y * width;
+		for (int i = offset; i < offset + width; i++) {
+			if (pixels[i] != pixelsPrevious[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Deflate a region of the current frame, using the Sub filter for each row.
+	 */
+	private void encode(Rectangle bounds, ReusableByteArrayOutputStream output) {
+		output.reset();
+		deflater.reset();
+		int rowBytes = bounds.width * 3 + 1;
+		for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+			row[0] = FILTER_SUB;
+			int offset = y * width + bounds.x;
+			int prevR = 0, prevG = 0, prevB = 0;
+			for (int x = 0, i = 1; x < bounds.width; x++) {
+				int rgb = pixels[offset + x];
+				int r = (rgb >> 16) & 0xff;
+				int g = (rgb >> 8) & 0xff;
+				int b = rgb & 0xff;
+				row[i++] = (byte)(r - prevR);
+				row[i++] = (byte)(g - prevG);
+				row[i++] = (byte)(b - prevB);
+				prevR = r;
+				prevG = g;
+				prevB = b;
+			}
+			deflater.setInput(row, 0, rowBytes);
+			while (!deflater.needsInput())
+				drainDeflater(output);
+		}
+		deflater.finish();
+		while (!deflater.finished())
+			drainDeflater(output);
+	}
+
+	private void drainDeflater(ReusableByteArrayOutputStream output) {
+		int n = deflater.deflate(deflateBuffer);
+		output.write(deflateBuffer, 0, n);
+	}
+
+	/**
+	 * Write the frame control and data for the pending frame, now that we know how long it should be shown.
+	 */
+	private void writePendingFrame() throws IOException {
+		// Delays are 16-bit, so switch to coarser units for very long frames
+		int delayDen = 1000;
+		long delayNum = pendingDelayMillis;
+		if (delayNum > 0xFFFF) {
+			delayDen = 100;
+			delayNum = Math.min(0xFFFF, (delayNum + 5) / 10);
+		}
+
+		frameControl.clear();
+		frameControl.putInt(sequenceNumber++)
+			.putInt(pendingBounds.width)
+			.putInt(pendingBounds.height)
+			.putInt(pendingBounds.x)
+			.putInt(pendingBounds.y)
+			.putShort((short)delayNum)
+			.putShort((short)delayDen)
+			.put((byte)0) // Dispose: none
+			.put((byte)0) // Blend: source
+			.flip();
+		writeChunk("fcTL", frameControl);
+
+		ByteBuffer data = ByteBuffer.wrap(pendingData.getBuffer(), 0, pendingData.size());
+		if (sequenceNumber == 1) {
+			// First frame is also the default image
+			writeChunk("IDAT", data);
+		} else {
+			ByteBuffer sequence = ByteBuffer.allocate(4).putInt(sequenceNumber++);
+			sequence.flip();
+			writeChunk("fdAT", sequence, data);
+		}
+		hasPending = false;
+	}
+
+	private void writeChunk(String type, ByteBuffer... data) throws IOException {
+		int length = 0;
+		for (ByteBuffer d : data)
+			length += d.remaining();
+		byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+
+		crc.reset();
+		crc.update(typeBytes);
+		for (ByteBuffer d : data)
+			crc.update(d.array(), d.arrayOffset() + d.position(), d.remaining());
+
+		chunkHeader.clear();
+		chunkHeader.putInt(length).put(typeBytes).flip();
+		write(chunkHeader);
+		for (ByteBuffer d : data)
+			write(d);
+		chunkFooter.clear();
+		chunkFooter.putInt((int)crc.getValue()).flip();
+		write(chunkFooter);
+	}
+
+	private void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+	}
+
+	/**
+	 * Write the final frame, then update the frame count and close the file.
+	 * If no frames were written, the file is deleted.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (channel == null)
+			return;
+		try {
+			if (nFrames == 0)
+				return;
+			if (hasPending)
+				writePendingFrame();
+			writeChunk("IEND");
+
+			// Update the animation control with the frame count
+			ByteBuffer control = ByteBuffer.allocate(8).putInt(nFrames).putInt(0);
+			control.flip();
+			crc.reset();
+			crc.update("acTL".getBytes(StandardCharsets.US_ASCII));
+			crc.update(control.array(), 0, control.limit());
+			ByteBuffer controlCrc = ByteBuffer.allocate(4).putInt((int)crc.getValue());
+			controlCrc.flip();
+			channel.write(control, ACTL_DATA_POSITION);
+			channel.write(controlCrc, ACTL_DATA_POSITION + 8);
+		} finally {
+			channel.close();
+			channel = null;
+			deflater.end();
+			if (nFrames == 0)
+				Files.deleteIfExists(file.toPath());
+		}
+	}
+
+}
@@ -0,0 +1,304 @@
+package io.github.petebankhead.bioimage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+import ij.IJ;
+
+/**
+ * Write files so that they only ever appear complete.
+ * <p>
+ * Output is written to a hidden temporary file in the target directory, which is then moved into place
+ * with an atomic rename. Anything watching the directory therefore sees either the previous file or the
+ * finished one, never a partly-written image.
+ * <p>
+ * Encoded bytes pass through pooled direct buffers straight to a {@link FileChannel}, so that repeated
+ * writes don't allocate new buffers (or use ImageIO's temporary file cache).
+ * Files can optionally be synced to disk, either individually or in batches to reduce the cost
+ * when many files are written in quick succession.
+ *
+ * @author Pete Bankhead
+ */
+class AtomicFileWriter {
+
+	/**
+	 * Encode data to a stream.
+	 */
+	static interface Encoder {
+		void encode(OutputStream stream) throws IOException;
+	}
+
+	/**
+	 * Encode data to a file, for writers that need a path rather than a stream.
+	 */
+	static interface FileEncoder {
+		void encode(File file) throws IOException;
+	}
+
+	/**
+	 * Policy for forcing written files to disk.
+	 */
+	static enum SyncMode {
+		/**
+		 * Leave it to the operating system.
+		 */
+		NONE,
+		/**
+		 * Sync every file before it is moved into place.
+		 */
+		EACH,
+		/**
+		 * Move files into place immediately, and sync them in batches.
+		 */
+		BATCH
+	}
+
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	private static final Queue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+
+	private final SyncMode syncMode;
+	private final int batchSize;
+	private final long batchMillis;
+
+	private final Set<Path> unsynced = new LinkedHashSet<>();
+	private long lastSyncMillis = System.currentTimeMillis();
+
+	/**
+	 * Create a writer.
+	 * @param syncMode policy for forcing files to disk
+	 * @param batchSize maximum number of files waiting to be synced, if using {@link SyncMode#BATCH}
+	 * @param batchMillis maximum time files may wait to be synced, if using {@link SyncMode#BATCH};
+	 *                    this is only checked when another file is written, or {@link #sync()} is called
+	 */
+	AtomicFileWriter(SyncMode syncMode, int batchSize, long batchMillis) {
+		this.syncMode = syncMode;
+		this.batchSize = Math.max(1, batchSize);
+		this.batchMillis = batchMillis;
+	}
+
+	/**
+	 * Write a file using an encoder that writes to a stream.
+	 * @param file the target file, which is replaced if it already exists
+	 * @param encoder
+	 * @throws IOException
+	 */
+	void write(File file, Encoder encoder) throws IOException {
+		Path target = file.toPath();
+		Path temp = createTempFile(target, false);
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+					ChannelOutputStream stream = new ChannelOutputStream(channel)) {
+				encoder.encode(stream);
+				stream.flush();
+				if (syncMode == SyncMode.EACH)
+					channel.force(true);
+			}
+			moveIntoPlace(temp, target);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Write a file using an encoder that requires a file path.
+	 * The temporary file has the same extension as the target, so that writers choosing the format
+	 * by extension behave as expected.
+	 * @param file the target file, which is replaced if it already exists
+	 * @param encoder
+	 * @throws IOException if writing failed, or the encoder didn't write anything
+	 */
+	void writeExternal(File file, FileEncoder encoder) throws IOException {
+		Path target = file.toPath();
+		Path temp = createTempFile(target, true);
+		try {
+			encoder.encode(temp.toFile());
+			if (Files.size(temp) == 0)
+				throw new IOException("Unable to write " + file.getName());
+			if (syncMode == SyncMode.EACH)
+				force(temp);
+			moveIntoPlace(temp, target);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Sync any files written since the last sync, if using {@link SyncMode#BATCH}.
+	 */
+	void sync() {
+		List<Path> paths;
+		synchronized (unsynced) {
+			if (unsynced.isEmpty())
+				return;
+			paths = new ArrayList<>(unsynced);
+			unsynced.clear();
+			lastSyncMillis = System.currentTimeMillis();
+		}
+		Set<Path> dirs = new LinkedHashSet<>();
+		for (Path path : paths) {
+			try {
+				force(path);
+				if (path.getParent() != null)
+					dirs.add(path.getParent());
+			} catch (IOException e) {
+				// File may have been removed or replaced in the meantime
+				if (IJ.debugMode)
+					IJ.log("Unable to sync " + path + ": " + e.getLocalizedMessage());
+			}
+		}
+		for (Path dir : dirs)
+			forceDirectory(dir);
+	}
+
+	/**
+	 * Create an empty, hidden temporary file alongside the target.
+	 * @param target
+	 * @param keepExtension if true, end the name with the target's extension (for writers that choose the format by extension);
+	 *                      otherwise end it with '.tmp', so that it doesn't match patterns such as '*.png'
+	 */
+	private static Path createTempFile(Path target, boolean keepExtension) throws IOException {
+		Path dir = target.toAbsolutePath().getParent();
+		String name = target.getFileName().toString();
+		String ext = "";
+		int ind = name.lastIndexOf(".");
+		if (keepExtension && ind > 0) {
+			ext = name.substring(ind);
+			name = name.substring(0, ind);
+		}
+		// Hidden prefix, so that directory watchers are likely to ignore it.
+		// Files.createTempFile would restrict permissions to the owner, and the move keeps them -
+		// so create the file ourselves, with the same permissions as any other new file.
+		while (true) {
+			Path temp = dir.resolve("." + name + "-" + Long.toUnsignedString(ThreadLocalRandom.current().nextLong(), 36) + ".tmp" + ext);
+			try {
+				Files.newByteChannel(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE).close();
+				return temp;
+			} catch (FileAlreadyExistsException e) {
+				continue;
+			}
+		}
+	}
+
+	private void moveIntoPlace(Path temp, Path target) throws IOException {
+		try {
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+		switch (syncMode) {
+		case EACH:
+			forceDirectory(target.toAbsolutePath().getParent());
+			break;
+		case BATCH:
+			boolean syncNow;
+			synchronized (unsynced) {
+				unsynced.add(target);
+				syncNow = unsynced.size() >= batchSize || System.currentTimeMillis() - lastSyncMillis >= batchMillis;
+			}
+			if (syncNow)
+				sync();
+			break;
+		default:
+			break;
+		}
+	}
+
+	private static void force(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Sync a directory, so that a rename is persisted.
+	 * This isn't possible on all platforms, in which case it's quietly skipped.
+	 */
+	private static void forceDirectory(Path dir) {
+		if (dir == null)
+			return;
+		try {
+			force(dir);
+		} catch (IOException e) {
+			// Not supported (e.g. on Windows)
+		}
+	}
+
+
+	/**
+	 * OutputStream that collects bytes in a pooled direct buffer, and writes them to a channel whenever it is full.
+	 */
+	private static class ChannelOutputStream extends OutputStream {
+
+		private final FileChannel channel;
+		private ByteBuffer buffer;
+
+		ChannelOutputStream(FileChannel channel) {
+			this.channel = channel;
+			this.buffer = bufferPool.poll();
+			if (this.buffer == null)
+				this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			this.buffer.clear();
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (!buffer.hasRemaining())
+				flush();
+			buffer.put((byte)b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (!buffer.hasRemaining())
+					flush();
+				int n = Math.min(len, buffer.remaining());
+				buffer.put(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (buffer == null)
+				throw new IOException("Stream has been closed");
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			buffer.clear();
+		}
+
+		/**
+		 * Return the buffer to the pool, without writing anything still in it.
+		 * Callers should {@link #flush()} first.
+		 */
+		@Override
+		public void close() {
+			if (buffer == null)
+				return;
+			buffer.clear();
+			bufferPool.offer(buffer);
+			buffer = null;
+		}
+
+	}
+
+}
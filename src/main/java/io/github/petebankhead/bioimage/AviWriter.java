@@ -0,0 +1,349 @@
+package io.github.petebankhead.bioimage;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Write frames to an AVI file as they arrive, either as Motion JPEG or uncompressed 24-bit RGB.
+ * <p>
+ * Frames are appended sequentially to the file as they are encoded.
+ * Index entries are spooled to a temporary file and only copied to the end of the AVI when it is closed,
+ * at which point the header is updated with the final frame count.
+ * Together, this means memory use doesn't depend upon the number of frames.
+ * <p>
+ * All frames have the size given when the writer was created;
+ * larger frames are cropped and smaller ones are padded with black.
+ * Files are limited to the 2 GB supported by a plain RIFF AVI.
+ *
+ * @author Pete Bankhead
+ */
+class AviWriter implements FrameWriter {
+
+	static enum Compression {
+		MJPEG, UNCOMPRESSED
+	}
+
+	private static final long MAX_FILE_BYTES = Integer.MAX_VALUE;
+
+	private static final int HEADER_BYTES = 224;
+
+	/**
+	 * Offset of the 'movi' fourcc, used as the reference for index offsets
+	 */
+	private static final int MOVI_OFFSET = 220;
+
+	private static final int AVIF_HASINDEX = 0x10;
+	private static final int AVIIF_KEYFRAME = 0x10;
+
+	private final Compression compression;
+	private final int width;
+	private final int height;
+	private final double fps;
+	private final byte[] chunkId;
+
+	private final Path indexPath;
+	private FileChannel channel;
+	private FileChannel indexChannel;
+
+	private final ByteBuffer chunkHeader = ByteBuffer.allocateDirect(8).order(ByteOrder.LITTLE_ENDIAN);
+	private final ByteBuffer indexBuffer = ByteBuffer.allocateDirect(16 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+	private ByteBuffer frameBuffer;
+	private ByteBuffer lastFrame;
+
+	private final BufferedImage img;
+	private final int[] pixels;
+
+	private ImageWriter jpegWriter;
+	private ImageWriteParam jpegParam;
+	private ReusableByteArrayOutputStream jpegBytes;
+
+	private long position = HEADER_BYTES;
+	private int nFrames = 0;
+	private int maxChunkBytes = 0;
+
+	/**
+	 * Create a writer, and write a provisional header to the file.
+	 * @param file output file
+	 * @param width frame width
+	 * @param height frame height
+	 * @param fps frame rate to use for playback
+	 * @param compression compression method
+	 * @param jpegQuality JPEG quality between 0 and 1, used only for MJPEG
+	 * @throws IOException
+	 */
+	AviWriter(File file, int width, int height, double fps, Compression compression, float jpegQuality) throws IOException {
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Frame size must be positive, but was " + width + "x" + height);
+		if (fps <= 0)
+			throw new IllegalArgumentException("Frame rate must be positive, but was " + fps);
+		this.width = width;
+		this.height = height;
+		this.fps = fps;
+		this.compression = compression;
+
+		img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		pixels = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+
+		if (compression == Compression.MJPEG) {
+			chunkId = fourcc("00dc");
+			Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+			if (!writers.hasNext())
+				throw new IOException("No JPEG writer available");
+			jpegWriter = writers.next();
+			jpegParam = jpegWriter.getDefaultWriteParam();
+			jpegParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			jpegParam.setCompressionQuality(Math.max(0f, Math.min(1f, jpegQuality)));
+			jpegBytes = new ReusableByteArrayOutputStream(width * height / 4);
+			frameBuffer = ByteBuffer.allocateDirect(width * height / 4);
+		} else {
+			chunkId = fourcc("00db");
+			frameBuffer = ByteBuffer.allocateDirect(getRowBytes() * height);
+		}
+
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			indexPath = Files.createTempFile(file.toPath().toAbsolutePath().getParent(), ".avi-index", ".tmp");
+			indexChannel = FileChannel.open(indexPath, StandardOpenOption.WRITE, StandardOpenOption.READ,
+					StandardOpenOption.DELETE_ON_CLOSE);
+			writeHeader(0);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private int getRowBytes() {
+		return (width * 3 + 3) & ~3;
+	}
+
+	@Override
+	public int getFrameCount() {
+		return nFrames;
+	}
+
+	@Override
+	public void writeFrame(BufferedImage frame) throws IOException {
+		if (channel == null)
+			throw new IOException("AVI writer has been closed");
+
+		// Copy into our own frame, so that we always have the right size and type
+		Graphics2D g2d = img.createGraphics();
+		if (frame.getWidth() < width || frame.getHeight() < height) {
+			g2d.setColor(Color.BLACK);
+			g2d.fillRect(0, 0, width, height);
+		}
+		g2d.drawImage(frame, 0, 0, null);
+		g2d.dispose();
+
+		lastFrame = compression == Compression.MJPEG ? encodeJpeg() : encodeUncompressed();
+		writeChunk(lastFrame);
+	}
+
+	/**
+	 * Write the last frame again, without re-encoding it.
+	 */
+	@Override
+	public void repeatFrame() throws IOException {
+		if (channel == null)
+			throw new IOException("AVI writer has been closed");
+		if (lastFrame == null)
+			return;
+		lastFrame.rewind();
+		writeChunk(lastFrame);
+	}
+
+	private void writeChunk(ByteBuffer data) throws IOException {
+		int size = data.remaining();
+		int padding = size & 1;
+		long chunkBytes = 8L + size + padding;
+		if (position + chunkBytes + 8 + 16L * (nFrames + 1) > MAX_FILE_BYTES)
+			throw new IOException("Maximum AVI file size reached after " + nFrames + " frames");
+
+		long chunkPosition = position;
+		chunkHeader.clear();
+		chunkHeader.put(chunkId).putInt(size).flip();
+		writeFully(channel, chunkHeader, position);
+		position += 8;
+		writeFully(channel, data, position);
+		position += size;
+		if (padding != 0) {
+			chunkHeader.clear();
+			chunkHeader.put((byte)0).flip();
+			writeFully(channel, chunkHeader, position);
+			position += padding;
+		}
+
+		if (indexBuffer.remaining() < 16)
+			flushIndex();
+		indexBuffer.put(chunkId).putInt(AVIIF_KEYFRAME).putInt((int)(chunkPosition - MOVI_OFFSET)).putInt(size);
+
+		maxChunkBytes = Math.max(maxChunkBytes, size);
+		nFrames++;
+	}
+
+	private ByteBuffer encodeJpeg() throws IOException {
+		jpegBytes.reset();
+		try (ImageOutputStream stream = new MemoryCacheImageOutputStream(jpegBytes)) {
+			jpegWriter.setOutput(stream);
+			jpegWriter.write(null, new IIOImage(img, null, null), jpegParam);
+		}
+		int n = jpegBytes.size();
+		if (frameBuffer.capacity() < n)
+			frameBuffer = ByteBuffer.allocateDirect(n + n / 2);
+		frameBuffer.clear();
+		frameBuffer.put(jpegBytes.getBuffer(), 0, n).flip();
+		return frameBuffer;
+	}
+
+	private ByteBuffer encodeUncompressed() {
+		// Bottom-up rows of BGR, each padded to a multiple of 4 bytes
+		int rowPadding = getRowBytes() - width * 3;
+		frameBuffer.clear();
+		for (int y = height - 1; y >= 0; y--) {
+			int ind = y * width;
+			for (int x = 0; x < width; x++) {
+				int rgb = pixels[ind + x];
+				frameBuffer.put((byte)rgb).put((byte)(rgb >> 8)).put((byte)(rgb >> 16));
+			}
+			for (int i = 0; i < rowPadding; i++)
+				frameBuffer.put((byte)0);
+		}
+		frameBuffer.flip();
+		return frameBuffer;
+	}
+
+	private void flushIndex() throws IOException {
+		indexBuffer.flip();
+		while (indexBuffer.hasRemaining())
+			indexChannel.write(indexBuffer);
+		indexBuffer.clear();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+	}
+
+	/**
+	 * Write the index and final header, then close the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (channel == null)
+			return;
+		try {
+			flushIndex();
+			long indexBytes = indexChannel.size();
+			long moviEnd = position;
+
+			chunkHeader.clear();
+			chunkHeader.put(fourcc("idx1")).putInt((int)indexBytes).flip();
+			writeFully(channel, chunkHeader, position);
+			position += 8;
+			long transferred = 0;
+			while (transferred < indexBytes)
+				transferred += indexChannel.transferTo(transferred, indexBytes - transferred, channel.position(position + transferred));
+			position += indexBytes;
+
+			writeHeader(moviEnd);
+			channel.force(true);
+		} finally {
+			try {
+				channel.close();
+			} finally {
+				channel = null;
+				indexChannel.close();
+				Files.deleteIfExists(indexPath);
+				if (jpegWriter != null)
+					jpegWriter.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Write the RIFF header, including the main AVI header and a single video stream.
+	 * @param moviEnd end of the movie data, or 0 if this isn't yet known
+	 */
+	private void writeHeader(long moviEnd) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		int microsPerFrame = (int)Math.round(1e6 / fps);
+		int scale = 1000;
+		int rate = (int)Math.round(fps * scale);
+		int suggestedBufferSize = maxChunkBytes + 8;
+		int maxBytesPerSec = (int)Math.min(Integer.MAX_VALUE, Math.ceil(suggestedBufferSize * fps));
+		boolean mjpeg = compression == Compression.MJPEG;
+
+		buffer.put(fourcc("RIFF")).putInt(moviEnd == 0 ? 0 : (int)(position - 8)).put(fourcc("AVI "));
+
+		buffer.put(fourcc("LIST")).putInt(192).put(fourcc("hdrl"));
+		buffer.put(fourcc("avih")).putInt(56)
+			.putInt(microsPerFrame)
+			.putInt(maxBytesPerSec)
+			.putInt(0) // Padding granularity
+			.putInt(AVIF_HASINDEX)
+			.putInt(nFrames)
+			.putInt(0) // Initial frames
+			.putInt(1) // Streams
+			.putInt(suggestedBufferSize)
+			.putInt(width)
+			.putInt(height)
+			.putInt(0).putInt(0).putInt(0).putInt(0); // Reserved
+
+		buffer.put(fourcc("LIST")).putInt(116).put(fourcc("strl"));
+		buffer.put(fourcc("strh")).putInt(56)
+			.put(fourcc("vids"))
+			.put(mjpeg ? fourcc("MJPG") : fourcc("DIB "))
+			.putInt(0) // Flags
+			.putShort((short)0) // Priority
+			.putShort((short)0) // Language
+			.putInt(0) // Initial frames
+			.putInt(scale)
+			.putInt(rate)
+			.putInt(0) // Start
+			.putInt(nFrames)
+			.putInt(suggestedBufferSize)
+			.putInt(-1) // Quality
+			.putInt(0) // Sample size
+			.putShort((short)0).putShort((short)0).putShort((short)width).putShort((short)height);
+
+		buffer.put(fourcc("strf")).putInt(40)
+			.putInt(40)
+			.putInt(width)
+			.putInt(height)
+			.putShort((short)1) // Planes
+			.putShort((short)24) // Bit count
+			.put(mjpeg ? fourcc("MJPG") : new byte[4])
+			.putInt(mjpeg ? width * height * 3 : getRowBytes() * height)
+			.putInt(0).putInt(0).putInt(0).putInt(0);
+
+		buffer.put(fourcc("LIST")).putInt(moviEnd == 0 ? 0 : (int)(moviEnd - MOVI_OFFSET)).put(fourcc("movi"));
+
+		buffer.flip();
+		writeFully(channel, buffer, 0);
+	}
+
+	private static byte[] fourcc(String code) {
+		return code.getBytes(StandardCharsets.US_ASCII);
+	}
+
+}
@@ -0,0 +1,187 @@
+package io.github.petebankhead.bioimage;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latencies for window capture, available through JMX as {@link CaptureMetricsMBean}.
+ * <p>
+ * Everything is recorded with {@link LongAdder}s, so that capture and encoding threads never contend with one another
+ * (or with anyone reading the metrics).
+ *
+ * @author Pete Bankhead
+ */
+class CaptureMetrics implements CaptureMetricsMBean {
+
+	private static final CaptureMetrics instance = new CaptureMetrics();
+
+	private static final AtomicBoolean registered = new AtomicBoolean(false);
+
+	private final LongAdder screenshotsSaved = new LongAdder();
+	private final LongAdder saveErrors = new LongAdder();
+	private final LongAdder bytesWritten = new LongAdder();
+	private final LongAdder framesWritten = new LongAdder();
+	private final LongAdder framesDropped = new LongAdder();
+
+	private final LatencyHistogram grab = new LatencyHistogram();
+	private final LatencyHistogram composite = new LatencyHistogram();
+	private final LatencyHistogram save = new LatencyHistogram();
+	private final LatencyHistogram frameWrite = new LatencyHistogram();
+
+	private volatile FrameRecorder activeRecorder;
+
+	private CaptureMetrics() {}
+
+	/**
+	 * Get the shared metrics, registering them with JMX the first time this is called.
+	 */
+	static CaptureMetrics get() {
+		if (!registered.get() && registered.compareAndSet(false, true))
+			JmxSupport.register("CaptureWindows", instance, CaptureMetricsMBean.class);
+		return instance;
+	}
+
+	void recordGrab(long nanos) {
+		grab.record(nanos);
+	}
+
+	void recordComposite(long nanos) {
+		composite.record(nanos);
+	}
+
+	void recordSave(long nanos, long bytes) {
+		screenshotsSaved.increment();
+		bytesWritten.add(bytes);
+		save.record(nanos);
+	}
+
+	void recordSaveError() {
+		saveErrors.increment();
+	}
+
+	void recordFrameWrite(long nanos) {
+		framesWritten.increment();
+		frameWrite.record(nanos);
+	}
+
+	void recordFrameDropped() {
+		framesDropped.increment();
+	}
+
+	void recordBytesWritten(long bytes) {
+		bytesWritten.add(bytes);
+	}
+
+	/**
+	 * Set the recorder whose queue depth should be reported.
+	 * @param recorder the recorder, or null if nothing is being recorded
+	 */
+	void setActiveRecorder(FrameRecorder recorder) {
+		activeRecorder = recorder;
+	}
+
+	@Override
+	public long getScreenshotsSaved() {
+		return screenshotsSaved.sum();
+	}
+
+	@Override
+	public long getSaveErrors() {
+		return saveErrors.sum();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	@Override
+	public long getFramesWritten() {
+		return framesWritten.sum();
+	}
+
+	@Override
+	public long getFramesDropped() {
+		return framesDropped.sum();
+	}
+
+	@Override
+	public int getQueueDepth() {
+		FrameRecorder recorder = activeRecorder;
+		return recorder == null ? 0 : recorder.getQueueDepth();
+	}
+
+	@Override
+	public double getGrabMillisP50() {
+		return grab.getPercentileMillis(50);
+	}
+
+	@Override
+	public double getGrabMillisP95() {
+		return grab.getPercentileMillis(95);
+	}
+
+	@Override
+	public double getGrabMillisP99() {
+		return grab.getPercentileMillis(99);
+	}
+
+	@Override
+	public double getCompositeMillisP50() {
+		return composite.getPercentileMillis(50);
+	}
+
+	@Override
+	public double getCompositeMillisP95() {
+		return composite.getPercentileMillis(95);
+	}
+
+	@Override
+	public double getCompositeMillisP99() {
+		return composite.getPercentileMillis(99);
+	}
+
+	@Override
+	public double getSaveMillisP50() {
+		return save.getPercentileMillis(50);
+	}
+
+	@Override
+	public double getSaveMillisP95() {
+		return save.getPercentileMillis(95);
+	}
+
+	@Override
+	public double getSaveMillisP99() {
+		return save.getPercentileMillis(99);
+	}
+
+	@Override
+	public double getFrameWriteMillisP50() {
+		return frameWrite.getPercentileMillis(50);
+	}
+
+	@Override
+	public double getFrameWriteMillisP95() {
+		return frameWrite.getPercentileMillis(95);
+	}
+
+	@Override
+	public double getFrameWriteMillisP99() {
+		return frameWrite.getPercentileMillis(99);
+	}
+
+	@Override
+	public void reset() {
+		screenshotsSaved.reset();
+		saveErrors.reset();
+		bytesWritten.reset();
+		framesWritten.reset();
+		framesDropped.reset();
+		grab.reset();
+		composite.reset();
+		save.reset();
+		frameWrite.reset();
+	}
+
+}
@@ -0,0 +1,76 @@
+package io.github.petebankhead.bioimage;
+
+/**
+ * Management interface for monitoring window capture, e.g. from JConsole or VisualVM.
+ * <p>
+ * Latencies are in milliseconds, and counts are since the plugin was loaded (or metrics were last reset).
+ * This interface needs to be public for JMX, but isn't intended to be used directly.
+ *
+ * @author Pete Bankhead
+ */
+public interface CaptureMetricsMBean {
+
+	/**
+	 * Number of screenshots saved.
+	 */
+	long getScreenshotsSaved();
+
+	/**
+	 * Number of screenshots that couldn't be saved.
+	 */
+	long getSaveErrors();
+
+	/**
+	 * Total size of screenshots and recordings written, in bytes.
+	 */
+	long getBytesWritten();
+
+	/**
+	 * Number of video frames written.
+	 */
+	long getFramesWritten();
+
+	/**
+	 * Number of video frames dropped because the writer couldn't keep up.
+	 */
+	long getFramesDropped();
+
+	/**
+	 * Number of video frames waiting to be written in the current recording, or 0 if nothing is being recorded.
+	 */
+	int getQueueDepth();
+
+	/**
+	 * Time to grab a window from the screen, or to render an image window.
+	 */
+	double getGrabMillisP50();
+	double getGrabMillisP95();
+	double getGrabMillisP99();
+
+	/**
+	 * Time to combine windows for a merged screenshot.
+	 */
+	double getCompositeMillisP50();
+	double getCompositeMillisP95();
+	double getCompositeMillisP99();
+
+	/**
+	 * Time to encode and write a screenshot.
+	 */
+	double getSaveMillisP50();
+	double getSaveMillisP95();
+	double getSaveMillisP99();
+
+	/**
+	 * Time to encode and write a video frame.
+	 */
+	double getFrameWriteMillisP50();
+	double getFrameWriteMillisP95();
+	double getFrameWriteMillisP99();
+
+	/**
+	 * Clear all counts and latencies.
+	 */
+	void reset();
+
+}
@@ -1,15 +1,18 @@
 package io.github.petebankhead.bioimage;
 
+import java.awt.AWTEvent;
 import java.awt.AWTException;
+import java.awt.Component;
 import java.awt.Frame;
-import java.awt.Graphics2D;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.GridLayout;
 import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.Robot;
+import java.awt.Toolkit;
 import java.awt.Window;
+import java.awt.event.AWTEventListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.WindowAdapter;
@@ -18,14 +21,35 @@ import java.awt.event.WindowFocusListener;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JComponent;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -34,14 +58,17 @@ import javax.swing.JSpinner;
 import javax.swing.JTextField;
 import javax.swing.SpinnerNumberModel;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.border.EmptyBorder;
 
 import ij.IJ;
 import ij.ImageJ;
+import ij.ImageListener;
 import ij.ImagePlus;
 import ij.Menus;
 import ij.Prefs;
 import ij.WindowManager;
+import ij.gui.ImageWindow;
 import ij.plugin.PlugIn;
 
 /**
@@ -79,14 +106,220 @@ public class CaptureWindowsPlugin implements PlugIn {
 		IJ.run("Capture window screenshots");
 	}
 
-	private WindowCapturerDialog capturer;
+	/**
+	 * Shared dialog, so that repeated calls to the plugin reuse the same frame and settings.
+	 */
+	private static WindowCapturerDialog capturer;
+	
+	/**
+	 * Shared robot for screen capture.
+	 */
+	private static Robot robot;
+	
+	/**
+	 * Reusable PNG encoders.
+	 */
+	private static final Queue<ImageWriter> pngWriters = new ConcurrentLinkedQueue<>();
+	
+	/**
+	 * Reusable QOI encoders.
+	 */
+	private static final Queue<QoiCodec> qoiCodecs = new ConcurrentLinkedQueue<>();
+	
+	/**
+	 * Output for screenshots, so that files only appear once they are complete.
+	 * Syncing is batched, since watch mode can write many files in quick succession.
+	 */
+	private static final AtomicFileWriter fileWriter = new AtomicFileWriter(AtomicFileWriter.SyncMode.BATCH, 16, 1000);
+	
+	/**
+	 * Maximum time to wait for the dialog, and then any watch, to stop when the JVM is shutting down.
+	 */
+	private static final long SHUTDOWN_WAIT_MILLIS = 2000;
+	
+	/**
+	 * Supported formats for recording video.
+	 */
+	static enum VideoFormat {
+		
+		AVI_MJPEG("AVI (Motion JPEG)", ".avi"),
+		AVI_UNCOMPRESSED("AVI (uncompressed)", ".avi"),
+		APNG("Animated PNG", ".png");
+		
+		private final String name;
+		private final String ext;
+		
+		VideoFormat(String name, String ext) {
+			this.name = name;
+			this.ext = ext;
+		}
+		
+		String getExtension() {
+			return ext;
+		}
+		
+		/**
+		 * Create a writer for this format.
+		 * @param file output file
+		 * @param width frame width
+		 * @param height frame height
+		 * @param fps frame rate
+		 * @param quality quality between 0 and 1; only used for lossy formats
+		 * @return
+		 * @throws IOException
+		 */
+		FrameWriter createWriter(File file, int width, int height, double fps, float quality) throws IOException {
+			switch (this) {
+			case AVI_MJPEG:
+				return new AviWriter(file, width, height, fps, AviWriter.Compression.MJPEG, quality);
+			case AVI_UNCOMPRESSED:
+				return new AviWriter(file, width, height, fps, AviWriter.Compression.UNCOMPRESSED, quality);
+			case APNG:
+				return new ApngWriter(file, width, height, fps, Deflater.DEFAULT_COMPRESSION);
+			default:
+				throw new IllegalArgumentException("Unknown video format " + this);
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return name;
+		}
+		
+	}
 
 
+	/**
+	 * Supported formats for screenshots.
+	 */
+	static enum ImageFormat {
+		
+		PNG("PNG", ".png"),
+		QOI("QOI (fast, convert to PNG later)", ".qoi");
+		
+		private final String name;
+		private final String ext;
+		
+		ImageFormat(String name, String ext) {
+			this.name = name;
+			this.ext = ext;
+		}
+		
+		String getExtension() {
+			return ext;
+		}
+		
+		@Override
+		public String toString() {
+			return name;
+		}
+		
+	}
+
+
+	/**
+	 * Show the capture dialog, or capture immediately using the current settings.
+	 * @param arg optionally "active", "all" or "merged" to capture without showing the dialog
+	 *            (useful for shortcuts and macros), or "convert" to convert QOI screenshots to PNG
+	 */
 	@Override
 	public void run(String arg) {
-		if (capturer == null)
+		if ("convert".equalsIgnoreCase(arg)) {
+			String dir = IJ.getDirectory("Choose directory containing QOI screenshots");
+			if (dir != null)
+				QoiConverter.convertInBackground(new File(dir));
+			return;
+		}
+		WindowCapturerDialog capturer = getCapturer();
+		WindowCapturerDialog.CaptureType type = null;
+		if (arg != null && !arg.trim().isEmpty()) {
+			try {
+				type = WindowCapturerDialog.CaptureType.valueOf(arg.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				IJ.log("Unknown capture type: " + arg);
+				return;
+			}
+		}
+		if (type == null) {
+			SwingUtilities.invokeLater(() -> capturer.getFrame().setVisible(true));
+			return;
+		}
+		WindowCapturerDialog.CaptureType captureType = type;
+		FutureTask<CompletableFuture<Boolean>> task = new FutureTask<>(() -> {
+			// Ensure settings are loaded
+			capturer.getFrame();
+			return capturer.captureDelayed(captureType);
+		});
+		// We can't wait on the Event Dispatch Thread, since that's where the capture happens
+		if (SwingUtilities.isEventDispatchThread()) {
+			task.run();
+			return;
+		}
+		// Wait until the capture is complete, so that a macro can safely continue (e.g. by closing the window)
+		try {
+			SwingUtilities.invokeAndWait(task);
+			task.get().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (InvocationTargetException | ExecutionException e) {
+			IJ.log("Error capturing screenshot: " + e.getCause().getLocalizedMessage());
+		}
+	}
+	
+	private static synchronized WindowCapturerDialog getCapturer() {
+		if (capturer == null) {
+			// Register metrics with JMX, so they can be monitored from the start
+			CaptureMetrics.get();
 			capturer = new WindowCapturerDialog();
-		capturer.getFrame().setVisible(true);
+			Runtime.getRuntime().addShutdownHook(new Thread(CaptureWindowsPlugin::shutdown, "bioimage-capture-shutdown"));
+		}
+		return capturer;
+	}
+	
+	private static synchronized Robot getRobot() throws AWTException {
+		if (robot == null)
+			robot = new Robot();
+		return robot;
+	}
+	
+	/**
+	 * Stop any ongoing watch, store the current settings and release encoders.
+	 * Each step is attempted even if an earlier one fails.
+	 */
+	private static void shutdown() {
+		WindowCapturerDialog capturer;
+		synchronized (CaptureWindowsPlugin.class) {
+			capturer = CaptureWindowsPlugin.capturer;
+		}
+		if (capturer != null) {
+			try {
+				// The dialog must be accessed on the Event Dispatch Thread - but don't wait forever, 
+				// in case it is blocked (e.g. because it called System.exit)
+				FutureTask<WindowWatcher> task = new FutureTask<>(capturer::shutdown);
+				if (SwingUtilities.isEventDispatchThread())
+					task.run();
+				else
+					SwingUtilities.invokeLater(task);
+				WindowWatcher watcher = task.get(SHUTDOWN_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+				if (watcher != null)
+					watcher.awaitStopped(SHUTDOWN_WAIT_MILLIS);
+			} catch (Exception e) {
+				IJ.log("Unable to stop capturing cleanly: " + e.getLocalizedMessage());
+			}
+		}
+		try {
+			ImageWriter writer;
+			while ((writer = pngWriters.poll()) != null)
+				writer.dispose();
+		} catch (RuntimeException e) {
+			IJ.log("Unable to release PNG encoders: " + e.getLocalizedMessage());
+		}
+		try {
+			fileWriter.sync();
+		} catch (RuntimeException e) {
+			IJ.log("Unable to sync screenshots: " + e.getLocalizedMessage());
+		}
+		DeferredPrefs.flushOnShutdown();
 	}
 
 
@@ -117,6 +350,38 @@ public class CaptureWindowsPlugin implements PlugIn {
 		private SpinnerNumberModel spinnerDelayModel = new SpinnerNumberModel(0, 0, 10, 1);
 		private JSpinner spinnerDelay = new JSpinner(spinnerDelayModel);
 
+		/**
+		 * Frame rate when recording video
+		 */
+		private SpinnerNumberModel spinnerFpsModel = new SpinnerNumberModel(10.0, 1.0, 60.0, 1.0);
+		private JSpinner spinnerFps = new JSpinner(spinnerFpsModel);
+
+		/**
+		 * Video format
+		 */
+		private JComboBox<VideoFormat> comboVideoFormat = new JComboBox<>(VideoFormat.values());
+
+		/**
+		 * Video quality for lossy formats (only set via preferences)
+		 */
+		private double videoQuality = 0.85;
+
+		/**
+		 * How image windows should be captured
+		 */
+		private JComboBox<ImageWindowRenderer.Mode> comboImageMode = new JComboBox<>(ImageWindowRenderer.Mode.values());
+
+		/**
+		 * Increment for the image scale, which also gives the smallest scale allowed
+		 */
+		private static final double IMAGE_SCALE_STEP = 0.25;
+
+		/**
+		 * Scale when rendering image windows from their pixels
+		 */
+		private SpinnerNumberModel spinnerImageScaleModel = new SpinnerNumberModel(1.0, IMAGE_SCALE_STEP, 16.0, IMAGE_SCALE_STEP);
+		private JSpinner spinnerImageScale = new JSpinner(spinnerImageScaleModel);
+
 		/**
 		 * Ensure filenames are unique
 		 */
@@ -128,11 +393,30 @@ public class CaptureWindowsPlugin implements PlugIn {
 		private JCheckBox cbIncludeToolbar = new JCheckBox("Include toolbar");
 
 		/**
-		 * Output file extension
+		 * Draw keypresses onto captured images
 		 */
-		private String ext = ".png";
+		private JCheckBox cbShowKeys = new JCheckBox("Show keypresses");
+
+		/**
+		 * Keypress position & size (only set via preferences)
+		 */
+		private KeyOverlayCompositor.Anchor keyOverlayAnchor = KeyOverlayCompositor.Anchor.BOTTOM_CENTER;
+		private double keyOverlayFontSize = 24;
+
+		/**
+		 * Output format for screenshots
+		 */
+		private JComboBox<ImageFormat> comboImageFormat = new JComboBox<>(ImageFormat.values());
 		
 		private Window previousFocusedWindow;
+		
+		/**
+		 * Time without further updates before a watched window is captured (only set via preferences)
+		 */
+		private int watchQuietMillis = 500;
+		
+		private WindowWatcher watcher;
+		private JButton btnWatch;
 
 		private static void addRow(JPanel panel, GridBagConstraints c, String tooltip, JComponent... components) {
 			c.gridx = 0;
@@ -183,10 +467,16 @@ public class CaptureWindowsPlugin implements PlugIn {
 			addRow(panel, c, "Choose the output directory (double-click to open a directory chooser)", new JLabel("Directory"), tfPath);
 			addRow(panel, c, "Choose the base name for the window captures", new JLabel("Name"), tfName);
 			addRow(panel, c, "Choose the delay (in seconds) before the capture", new JLabel("Delay"), spinnerDelay);
+			addRow(panel, c, "Choose the file format for screenshots - QOI is much faster to write, and can be converted to PNG afterwards", new JLabel("Image format"), comboImageFormat);
+			addRow(panel, c, "Choose the frame rate when recording video", new JLabel("Frame rate"), spinnerFps);
+			addRow(panel, c, "Choose the file format when recording video", new JLabel("Video format"), comboVideoFormat);
+			addRow(panel, c, "Choose whether image windows are grabbed from the screen, or rendered from their pixels (with or without the window around them)", new JLabel("Image windows"), comboImageMode);
+			addRow(panel, c, "Choose the scale when rendering image windows from their pixels (1 gives one output pixel per image pixel)", new JLabel("Image scale"), spinnerImageScale);
 
 			c.gridwidth = 2;
 			addRow(panel, c, "Include main ImageJ toolbar when capturing windows", cbIncludeToolbar);			
 			addRow(panel, c, "Avoid overwriting existing image files by ensuring all filenames are unique", cbUnique);			
+			addRow(panel, c, "Draw the current keypresses onto captured images (requires 'Show keypresses' to be running)", cbShowKeys);			
 
 			JButton btnActive = new JButton("Active");
 			btnActive.setToolTipText("Capture the active image only");
@@ -200,11 +490,21 @@ public class CaptureWindowsPlugin implements PlugIn {
 			btnAll.setToolTipText("Capture a separate image of each window individually");
 			btnAll.addActionListener(e -> captureDelayed(CaptureType.ALL));
 
-			GridLayout layoutButtons = new GridLayout(1, 3);
+			JButton btnRecord = new JButton("Record");
+			btnRecord.setToolTipText("Record a video of the active window (press Escape to stop)");
+			btnRecord.addActionListener(e -> recordDelayed());
+
+			btnWatch = new JButton("Watch");
+			btnWatch.setToolTipText("Capture the active window every time it changes (click again to stop)");
+			btnWatch.addActionListener(e -> toggleWatch());
+
+			GridLayout layoutButtons = new GridLayout(1, 5);
 			JPanel paneButtons = new JPanel(layoutButtons);
 			paneButtons.add(btnActive);
 			paneButtons.add(btnAll);
 			paneButtons.add(btnMerge);
+			paneButtons.add(btnRecord);
+			paneButtons.add(btnWatch);
 			addRow(panel, c, null, paneButtons);
 
 			panel.setBorder(new EmptyBorder(10, 10, 10, 10));
@@ -219,6 +519,8 @@ public class CaptureWindowsPlugin implements PlugIn {
 				@Override
 				public void windowLostFocus(WindowEvent e) {
 					previousFocusedWindow = null;
+					// Store settings when focus moves elsewhere, so that ImageJ saves them if it is quit next
+					storePrefs();
 				}
 				
 				@Override
@@ -230,64 +532,239 @@ public class CaptureWindowsPlugin implements PlugIn {
 			frame.addWindowListener(new WindowAdapter() {
 				@Override
 				public void windowClosing(WindowEvent event) {
+					if (watcher != null)
+						toggleWatch();
 					savePrefs();
 				}
 			});
 		}
 
-		private boolean captureDelayed(CaptureType capture) {
+		/**
+		 * Capture after the delay set in the dialog.
+		 * @param capture
+		 * @return a future that completes once the capture has been saved, with true if it was successful
+		 */
+		private CompletableFuture<Boolean> captureDelayed(CaptureType capture) {
 			Number seconds = (Number)spinnerDelayModel.getValue();
 			String dir = tfPath.getText();
 			String name = tfName.getText();
 			boolean ensureUnique = cbUnique.isSelected();
 			boolean includeToolbar = cbIncludeToolbar.isSelected();
+			String ext = getImageExtension();
+			KeyOverlayCompositor keyOverlay = createKeyOverlay();
+			ImageWindowRenderer renderer = createRenderer();
+			boolean wasVisible = frame != null && frame.isVisible();
 			
 			if (seconds != null && seconds.longValue() > 0) {
 				if (frame != null)
 					frame.setVisible(false);
+				CompletableFuture<Boolean> result = new CompletableFuture<>();
 				ForkJoinPool.commonPool().submit(() -> {
 					try {
-						for (long toWait = seconds.longValue(); toWait > 0; toWait--) {
-							if (IJ.escapePressed()) {
-								IJ.resetEscape();
-								IJ.showStatus("Screenshot cancelled!");
-								return;
-							}
-							IJ.showStatus("Screenshot in " + toWait + " s... (Escape to cancel)");						
-							TimeUnit.SECONDS.sleep(1);
+						if (!waitForDelay(seconds.longValue(), "Screenshot")) {
+							result.complete(false);
+							return;
 						}
-						IJ.showStatus("");
-						TimeUnit.MILLISECONDS.sleep(100); // We want the status bar cleared...
-						SwingUtilities.invokeLater(() -> capture(capture, dir, name, ext, includeToolbar, ensureUnique));
+						SwingUtilities.invokeLater(() -> {
+							try {
+								result.complete(capture(capture, dir, name, ext, includeToolbar, ensureUnique, keyOverlay, renderer));
+							} catch (RuntimeException e) {
+								result.completeExceptionally(e);
+							}
+						});
 					} catch (InterruptedException e) {
 						IJ.log(e.getLocalizedMessage());
+						result.complete(false);
 					} finally {
-						if (frame != null)
+						if (frame != null && wasVisible)
 							SwingUtilities.invokeLater(() -> frame.setVisible(true));
 					}
 				});
-				return true;
+				return result;
 			} else {
 				try {
 					frame.setVisible(false);
-					if (capture(capture, dir, name, ext, includeToolbar, ensureUnique)) {
+					boolean success = capture(capture, dir, name, ext, includeToolbar, ensureUnique, keyOverlay, renderer);
+					if (success)
 						savePrefs();
-						return true;
-					} else
-						return false;
+					return CompletableFuture.completedFuture(success);
 				} finally {
-					frame.setVisible(true);
+					if (wasVisible)
+						frame.setVisible(true);
 				}
 			}
 		}
 		
 		
+		/**
+		 * Count down before a capture, showing the time remaining in the status bar.
+		 * @param seconds
+		 * @param description
+		 * @return true if the full delay elapsed, false if it was cancelled by pressing Escape
+		 * @throws InterruptedException
+		 */
+		private static boolean waitForDelay(long seconds, String description) throws InterruptedException {
+			if (seconds <= 0)
+				return true;
+			for (long toWait = seconds; toWait > 0; toWait--) {
+				if (IJ.escapePressed()) {
+					IJ.resetEscape();
+					IJ.showStatus(description + " cancelled!");
+					return false;
+				}
+				IJ.showStatus(description + " in " + toWait + " s... (Escape to cancel)");						
+				TimeUnit.SECONDS.sleep(1);
+			}
+			IJ.showStatus("");
+			TimeUnit.MILLISECONDS.sleep(100); // We want the status bar cleared...
+			return true;
+		}
+		
+		private void recordDelayed() {
+			Window window = previousFocusedWindow;
+			if (window == null)
+				window = getActiveWindow();
+			if (window == null) {
+				IJ.log("Cannot record video - no active window found!");
+				return;
+			}
+			Number seconds = (Number)spinnerDelayModel.getValue();
+			double fps = spinnerFpsModel.getNumber().doubleValue();
+			File dir = new File(tfPath.getText());
+			if (!ensureDirExists(dir))
+				return;
+			VideoFormat format = (VideoFormat)comboVideoFormat.getSelectedItem();
+			File file = makeFile(dir, tfName.getText(), format.getExtension(), cbUnique.isSelected());
+			float quality = (float)videoQuality;
+			KeyOverlayCompositor keyOverlay = createKeyOverlay();
+			Window target = window;
+			
+			savePrefs();
+			frame.setVisible(false);
+			// Use a dedicated thread, since recording can last a long time and shouldn't hold up the common pool
+			Thread thread = new Thread(() -> {
+				try {
+					if (waitForDelay(seconds == null ? 0 : seconds.longValue(), "Recording"))
+						recordWindow(target, file, fps, format, quality, keyOverlay);
+				} catch (Exception e) {
+					IJ.log("Error recording video: " + e.getLocalizedMessage());
+				} finally {
+					SwingUtilities.invokeLater(() -> frame.setVisible(true));
+				}
+			}, "bioimage-recorder");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		
+		/**
+		 * Stop watching and store the current settings in memory, ready to be written.
+		 * This must be called on the Event Dispatch Thread.
+		 * @return the watcher that was stopped, or null if there wasn't one
+		 */
+		WindowWatcher shutdown() {
+			WindowWatcher watcher = this.watcher;
+			if (watcher != null)
+				watcher.stop();
+			if (frame != null)
+				storePrefs();
+			return watcher;
+		}
+		
+		private void toggleWatch() {
+			if (watcher != null) {
+				watcher.stop();
+				return;
+			}
+			Window window = previousFocusedWindow;
+			if (window == null)
+				window = getActiveWindow();
+			if (window == null) {
+				IJ.log("Cannot watch - no active window found!");
+				return;
+			}
+			File dir = new File(tfPath.getText());
+			if (!ensureDirExists(dir))
+				return;
+			savePrefs();
+			watcher = new WindowWatcher(window, dir, tfName.getText(), getImageExtension(), cbUnique.isSelected(), createKeyOverlay(), createRenderer(), watchQuietMillis);
+			watcher.setOnStop(() -> {
+				watcher = null;
+				btnWatch.setText("Watch");
+			});
+			try {
+				watcher.start();
+				btnWatch.setText("Stop watching");
+			} catch (AWTException e) {
+				IJ.log("Unable to watch window: " + e.getLocalizedMessage());
+				watcher = null;
+			}
+		}
+		
+		/**
+		 * Create a compositor to draw keypresses onto captured images, if requested.
+		 * @return the compositor, or null if keypresses shouldn't be shown
+		 */
+		private KeyOverlayCompositor createKeyOverlay() {
+			if (!cbShowKeys.isSelected())
+				return null;
+			if (InputDisplayPlugin.getActiveKeyState() == null)
+				IJ.log("Keypresses will only be shown while 'Show keypresses' is running");
+			return new KeyOverlayCompositor(keyOverlayAnchor, (float)keyOverlayFontSize, 1500);
+		}
+		
+		private String getImageExtension() {
+			return ((ImageFormat)comboImageFormat.getSelectedItem()).getExtension();
+		}
+		
+		/**
+		 * Create a renderer for image windows, if they shouldn't be grabbed from the screen.
+		 * @return the renderer, or null if screen grabs should be used
+		 */
+		private ImageWindowRenderer createRenderer() {
+			ImageWindowRenderer.Mode mode = (ImageWindowRenderer.Mode)comboImageMode.getSelectedItem();
+			if (mode == null || mode == ImageWindowRenderer.Mode.SCREEN)
+				return null;
+			return new ImageWindowRenderer(mode, spinnerImageScaleModel.getNumber().doubleValue());
+		}
+		
 		private void loadPrefs() {
 			tfPath.setText(Prefs.get(PREFS_KEY + ".dir", tfPath.getText()));
 			tfName.setText(Prefs.get(PREFS_KEY + ".name", tfName.getText()));
 			spinnerDelayModel.setValue(Prefs.get(PREFS_KEY + ".delay", spinnerDelayModel.getNumber().doubleValue()));
 			cbUnique.setSelected(Prefs.get(PREFS_KEY + ".ensureUnique", cbUnique.isSelected()));
 			cbIncludeToolbar.setSelected(Prefs.get(PREFS_KEY + ".includeToolbar", cbIncludeToolbar.isSelected()));
+			spinnerFpsModel.setValue(Prefs.get(PREFS_KEY + ".videoFps", spinnerFpsModel.getNumber().doubleValue()));
+			cbShowKeys.setSelected(Prefs.get(PREFS_KEY + ".showKeys", cbShowKeys.isSelected()));
+			// Snap to the spinner steps, in case the scale was stored with different limits
+			double imageScale = Prefs.get(PREFS_KEY + ".imageScale", spinnerImageScaleModel.getNumber().doubleValue());
+			imageScale = Math.round(imageScale / IMAGE_SCALE_STEP) * IMAGE_SCALE_STEP;
+			spinnerImageScaleModel.setValue(Math.max(IMAGE_SCALE_STEP, Math.min(16.0, imageScale)));
+			try {
+				ImageWindowRenderer.Mode mode = (ImageWindowRenderer.Mode)comboImageMode.getSelectedItem();
+				comboImageMode.setSelectedItem(ImageWindowRenderer.Mode.valueOf(Prefs.get(PREFS_KEY + ".imageMode", mode.name())));
+			} catch (IllegalArgumentException e) {
+				IJ.log("Unknown image window mode: " + e.getLocalizedMessage());
+			}
+			keyOverlayFontSize = Prefs.get(PREFS_KEY + ".keyOverlayFontSize", keyOverlayFontSize);
+			watchQuietMillis = (int)Prefs.get(PREFS_KEY + ".watchQuietMillis", watchQuietMillis);
+			try {
+				keyOverlayAnchor = KeyOverlayCompositor.Anchor.valueOf(Prefs.get(PREFS_KEY + ".keyOverlayAnchor", keyOverlayAnchor.name()));
+			} catch (IllegalArgumentException e) {
+				IJ.log("Unknown keypress position: " + e.getLocalizedMessage());
+			}
+			videoQuality = Prefs.get(PREFS_KEY + ".videoQuality", videoQuality);
+			try {
+				ImageFormat format = (ImageFormat)comboImageFormat.getSelectedItem();
+				comboImageFormat.setSelectedItem(ImageFormat.valueOf(Prefs.get(PREFS_KEY + ".imageFormat", format.name())));
+			} catch (IllegalArgumentException e) {
+				IJ.log("Unknown image format: " + e.getLocalizedMessage());
+			}
+			try {
+				VideoFormat format = (VideoFormat)comboVideoFormat.getSelectedItem();
+				comboVideoFormat.setSelectedItem(VideoFormat.valueOf(Prefs.get(PREFS_KEY + ".videoFormat", format.name())));
+			} catch (IllegalArgumentException e) {
+				IJ.log("Unknown video format: " + e.getLocalizedMessage());
+			}
 			if (frame != null && !Prefs.doNotSaveWindowLocations) {
 				Point location = Prefs.getLocation(PREFS_KEY + ".location");
 				if (location != null)
@@ -295,19 +772,54 @@ public class CaptureWindowsPlugin implements PlugIn {
 			}
 		}
 		
+		/**
+		 * Store the current settings, and request that they are written soon.
+		 */
 		private void savePrefs() {
-			Prefs.set(PREFS_KEY + ".dir", tfPath.getText());
-			Prefs.set(PREFS_KEY + ".name", tfName.getText());
-			Prefs.set(PREFS_KEY + ".delay", spinnerDelayModel.getNumber().doubleValue());
-			Prefs.set(PREFS_KEY + ".ensureUnique", cbUnique.isSelected());
-			Prefs.set(PREFS_KEY + ".includeToolbar", cbIncludeToolbar.isSelected());
+			storePrefs();
+			DeferredPrefs.requestSave();
+		}
+		
+		/**
+		 * Store the current settings in memory, without writing them.
+		 */
+		private void storePrefs() {
+			DeferredPrefs.set(PREFS_KEY + ".dir", tfPath.getText());
+			DeferredPrefs.set(PREFS_KEY + ".name", tfName.getText());
+			DeferredPrefs.set(PREFS_KEY + ".delay", spinnerDelayModel.getNumber().doubleValue());
+			DeferredPrefs.set(PREFS_KEY + ".ensureUnique", cbUnique.isSelected());
+			DeferredPrefs.set(PREFS_KEY + ".includeToolbar", cbIncludeToolbar.isSelected());
+			DeferredPrefs.set(PREFS_KEY + ".videoFps", spinnerFpsModel.getNumber().doubleValue());
+			DeferredPrefs.set(PREFS_KEY + ".showKeys", cbShowKeys.isSelected());
+			DeferredPrefs.set(PREFS_KEY + ".imageScale", spinnerImageScaleModel.getNumber().doubleValue());
+			DeferredPrefs.set(PREFS_KEY + ".imageMode", ((ImageWindowRenderer.Mode)comboImageMode.getSelectedItem()).name());
+			DeferredPrefs.set(PREFS_KEY + ".keyOverlayFontSize", keyOverlayFontSize);
+			DeferredPrefs.set(PREFS_KEY + ".watchQuietMillis", watchQuietMillis);
+			DeferredPrefs.set(PREFS_KEY + ".keyOverlayAnchor", keyOverlayAnchor.name());
+			DeferredPrefs.set(PREFS_KEY + ".videoQuality", videoQuality);
+			DeferredPrefs.set(PREFS_KEY + ".imageFormat", ((ImageFormat)comboImageFormat.getSelectedItem()).name());
+			DeferredPrefs.set(PREFS_KEY + ".videoFormat", ((VideoFormat)comboVideoFormat.getSelectedItem()).name());
 			if (!Prefs.doNotSaveWindowLocations && frame != null && frame.getLocation() != null)
-				Prefs.saveLocation(PREFS_KEY + ".location", frame.getLocation());
-			Prefs.savePreferences();
+				DeferredPrefs.saveLocation(PREFS_KEY + ".location", frame.getLocation());
 		}
 		
 
-		private boolean capture(CaptureType capture, String dir, String name, String ext, boolean includeToolbar, boolean ensureUnique) {
+		/**
+		 * Capture and save windows.
+		 * If keypresses are drawn onto the images, the keypress display is hidden while capturing so they don't appear twice.
+		 */
+		private boolean capture(CaptureType capture, String dir, String name, String ext, boolean includeToolbar, boolean ensureUnique, KeyOverlayCompositor keyOverlay, ImageWindowRenderer renderer) {
+			if (keyOverlay == null)
+				return captureWindows(capture, dir, name, ext, includeToolbar, ensureUnique, null, renderer);
+			InputDisplayPlugin.hideDisplay();
+			try {
+				return captureWindows(capture, dir, name, ext, includeToolbar, ensureUnique, keyOverlay, renderer);
+			} finally {
+				InputDisplayPlugin.restoreDisplay();
+			}
+		}
+
+		private boolean captureWindows(CaptureType capture, String dir, String name, String ext, boolean includeToolbar, boolean ensureUnique, KeyOverlayCompositor keyOverlay, ImageWindowRenderer renderer) {
 			
 			switch(capture) {
 			case ACTIVE:
@@ -316,16 +828,16 @@ public class CaptureWindowsPlugin implements PlugIn {
 					if (previousFocusedWindow != null)
 						previousFocusedWindow.requestFocus();
 					try {
-						return saveWindows(dir, name, ext, ensureUnique, previousFocusedWindow);
+						return saveWindows(dir, name, ext, ensureUnique, keyOverlay, renderer, previousFocusedWindow);
 					} catch (Exception e) {
 						IJ.log("Exception saving active window: " + e.getLocalizedMessage());
 					}
 				} else
-					return saveActiveWindow(dir, name, ext, ensureUnique);
+					return saveActiveWindow(dir, name, ext, ensureUnique, keyOverlay, renderer);
 			case ALL:
-				return saveAllWindows(dir, name, ext, includeToolbar, ensureUnique);
+				return saveAllWindows(dir, name, ext, includeToolbar, ensureUnique, keyOverlay, renderer);
 			case MERGED:
-				return saveMergedWindows(dir, name, ext, includeToolbar, ensureUnique);
+				return saveMergedWindows(dir, name, ext, includeToolbar, ensureUnique, keyOverlay);
 			default:
 				IJ.log("Unknown capture type! " + capture);
 				return false;
@@ -335,14 +847,220 @@ public class CaptureWindowsPlugin implements PlugIn {
 	}
 
 
-	private static boolean saveActiveWindow(String dir, String name, String ext, boolean ensureUnique)  {
+	/**
+	 * Capture a window whenever it changes.
+	 * <p>
+	 * Changes are detected from paint events for the window and, for image windows, updates to the image.
+	 * A capture is only made once there have been no further changes for a quiet period, so that a burst of 
+	 * updates results in a single image - and nothing is done at all while the window is unchanged.
+	 * <p>
+	 * Images are captured and saved on a background thread, so the Event Dispatch Thread is never held up.
+	 * Files are numbered from the highest number already in the output directory, so a new watch doesn't
+	 * overwrite the images from a previous one.
+	 */
+	private static class WindowWatcher implements ImageListener, AWTEventListener {
+		
+		private final Window window;
+		private final ImagePlus imp;
+		private final File dir;
+		private final String name;
+		private final String ext;
+		private final boolean ensureUnique;
+		private final KeyOverlayCompositor keyOverlay;
+		private final ImageWindowRenderer renderer;
+		private final Timer timer;
+		private final ExecutorService captureExecutor;
+		
+		private Robot robot;
+		private Runnable onStop;
+		private WindowAdapter windowListener;
+		
+		private final AtomicLong updateCount = new AtomicLong();
+		private final AtomicBoolean stopped = new AtomicBoolean(false);
+		
+		/**
+		 * Number of images captured, and the last number used for a file name; only accessed from the capture thread
+		 */
+		private int captureCount = 0;
+		private int fileNumber = 0;
+		
+		WindowWatcher(Window window, File dir, String name, String ext, boolean ensureUnique, KeyOverlayCompositor keyOverlay, ImageWindowRenderer renderer, int quietMillis) {
+			this.window = window;
+			this.imp = window instanceof ImageWindow ? ((ImageWindow)window).getImagePlus() : null;
+			this.dir = dir;
+			this.name = name;
+			this.ext = ext;
+			this.ensureUnique = ensureUnique;
+			this.keyOverlay = keyOverlay;
+			this.renderer = renderer;
+			this.captureExecutor = Executors.newSingleThreadExecutor(r -> {
+				Thread thread = new Thread(r, "bioimage-window-watcher");
+				thread.setDaemon(true);
+				return thread;
+			});
+			this.timer = new Timer(Math.max(1, quietMillis), e -> requestCapture());
+			this.timer.setRepeats(false);
+		}
+		
+		void setOnStop(Runnable onStop) {
+			this.onStop = onStop;
+		}
+		
+		void start() throws AWTException {
+			robot = getRobot();
+			captureExecutor.execute(() -> fileNumber = findLastFileNumber());
+			if (imp != null)
+				ImagePlus.addImageListener(this);
+			Toolkit.getDefaultToolkit().addAWTEventListener(this, AWTEvent.PAINT_EVENT_MASK);
+			windowListener = new WindowAdapter() {
+				@Override
+				public void windowClosed(WindowEvent e) {
+					stop();
+				}
+			};
+			window.addWindowListener(windowListener);
+			// Keep the keypress display hidden while watching, since hiding it for each capture could expose 
+			// (and so repaint) the watched window, triggering another capture
+			if (keyOverlay != null)
+				InputDisplayPlugin.hideDisplay();
+			IJ.showStatus("Watching " + getTitle(window));
+			// Start with the current state
+			timer.restart();
+		}
+		
+		/**
+		 * Stop watching. This is always done on the Event Dispatch Thread, although it can be requested from any thread.
+		 * Any capture in progress is allowed to finish.
+		 */
+		void stop() {
+			if (!SwingUtilities.isEventDispatchThread()) {
+				SwingUtilities.invokeLater(this::stop);
+				return;
+			}
+			if (!stopped.compareAndSet(false, true))
+				return;
+			timer.stop();
+			if (imp != null)
+				ImagePlus.removeImageListener(this);
+			Toolkit.getDefaultToolkit().removeAWTEventListener(this);
+			window.removeWindowListener(windowListener);
+			if (keyOverlay != null)
+				InputDisplayPlugin.restoreDisplay();
+			captureExecutor.execute(() -> {
+				fileWriter.sync();
+				IJ.showStatus("Captured " + captureCount + " images from " + updateCount.get() + " updates");
+			});
+			captureExecutor.shutdown();
+			if (onStop != null)
+				onStop.run();
+		}
+		
+		/**
+		 * Wait for any capture in progress to be saved, after {@link #stop()} has been called.
+		 * @param millis maximum time to wait
+		 * @return true if all captures are complete, false otherwise
+		 * @throws InterruptedException
+		 */
+		boolean awaitStopped(long millis) throws InterruptedException {
+			return captureExecutor.awaitTermination(millis, TimeUnit.MILLISECONDS);
+		}
+		
+		/**
+		 * Find the highest number used in the name of an image from an earlier watch in the same directory.
+		 */
+		private int findLastFileNumber() {
+			Pattern pattern = Pattern.compile(Pattern.quote(name) + "-(\\d+)" + Pattern.quote(ext));
+			String[] names = dir.list();
+			int last = 0;
+			if (names != null) {
+				for (String n : names) {
+					Matcher matcher = pattern.matcher(n);
+					if (matcher.matches()) {
+						try {
+							last = Math.max(last, Integer.parseInt(matcher.group(1)));
+						} catch (NumberFormatException e) {
+							continue;
+						}
+					}
+				}
+			}
+			return last;
+		}
+		
+		private void changed() {
+			if (stopped.get())
+				return;
+			updateCount.incrementAndGet();
+			// Restart the quiet period; Swing timers are safe to use from any thread
+			timer.restart();
+		}
+		
+		@Override
+		public void eventDispatched(AWTEvent event) {
+			Object source = event.getSource();
+			if (source == window || (source instanceof Component && SwingUtilities.getWindowAncestor((Component)source) == window))
+				changed();
+		}
+		
+		@Override
+		public void imageUpdated(ImagePlus imp) {
+			if (imp == this.imp)
+				changed();
+		}
+		
+		@Override
+		public void imageOpened(ImagePlus imp) {}
+		
+		@Override
+		public void imageClosed(ImagePlus imp) {}
+		
+		/**
+		 * Queue a capture, unless watching has stopped; called on the Event Dispatch Thread when the timer fires.
+		 * The timer may have been restarted from another thread just as watching stopped, so we need to check.
+		 */
+		private void requestCapture() {
+			if (stopped.get())
+				return;
+			try {
+				captureExecutor.execute(this::captureNow);
+			} catch (RejectedExecutionException e) {
+				// Stopped since the check above
+			}
+		}
+		
+		/**
+		 * Capture and save the window; called on the capture thread.
+		 * This doesn't update the status bar, since that could repaint the window being watched and trigger another capture.
+		 */
+		private void captureNow() {
+			if (stopped.get() || !window.isVisible())
+				return;
+			try {
+				// Don't bring the window to the front, since that could trigger another update
+				BufferedImage img = capture(robot, window, false, renderer);
+				if (keyOverlay != null)
+					keyOverlay.paint(img);
+				fileNumber++;
+				File file = makeFile(dir, name + "-" + String.format("%04d", fileNumber), ext, ensureUnique);
+				saveImage(img, file);
+				captureCount++;
+			} catch (Exception e) {
+				IJ.log("Error capturing watched window: " + e.getLocalizedMessage());
+				stop();
+			}
+		}
+		
+	}
+
+
+	private static boolean saveActiveWindow(String dir, String name, String ext, boolean ensureUnique, KeyOverlayCompositor keyOverlay, ImageWindowRenderer renderer)  {
 		Window window = getActiveWindow();
 		if (window == null) {
 			IJ.log("Cannot create screenshot - no active window found!");
 			return false;
 		}
 		try {
-			return saveWindows(dir, name, ext, ensureUnique, window);
+			return saveWindows(dir, name, ext, ensureUnique, keyOverlay, renderer, window);
 		} catch (Exception e) {
 			IJ.log("Exception saving active window: " + e.getLocalizedMessage());
 			return false;
@@ -350,7 +1068,7 @@ public class CaptureWindowsPlugin implements PlugIn {
 	}
 
 
-	private static boolean saveAllWindows(String dir, String name, String ext, boolean includeToolbar, boolean ensureUnique) {
+	private static boolean saveAllWindows(String dir, String name, String ext, boolean includeToolbar, boolean ensureUnique, KeyOverlayCompositor keyOverlay, ImageWindowRenderer renderer) {
 		File baseDir = new File(dir, name);
 		if (ensureUnique)
 			baseDir = ensureUnique(baseDir);
@@ -358,7 +1076,7 @@ public class CaptureWindowsPlugin implements PlugIn {
 			return false;
 
 		try {
-			return saveWindows(baseDir.getAbsolutePath(), null, ext, ensureUnique, getWindows(includeToolbar));
+			return saveWindows(baseDir.getAbsolutePath(), null, ext, ensureUnique, keyOverlay, renderer, getWindows(includeToolbar, keyOverlay != null));
 		} catch (Exception e) {
 			IJ.log("Exception saving all windows: " + e.getLocalizedMessage());
 			return false;
@@ -366,9 +1084,10 @@ public class CaptureWindowsPlugin implements PlugIn {
 	}
 
 
-	private static boolean saveMergedWindows(String dir, String name, String ext, boolean includeToolbar, boolean ensureUnique) {
+	private static boolean saveMergedWindows(String dir, String name, String ext, boolean includeToolbar, boolean ensureUnique, KeyOverlayCompositor keyOverlay) {
 
-		Window[] windows = getWindows(includeToolbar);
+		// Keypresses are drawn onto the merged image, so don't include the keypress display as well
+		Window[] windows = getWindows(includeToolbar, keyOverlay != null);
 		Rectangle bounds = null;
 		for (Window window : windows) {
 			if (bounds == null)
@@ -376,21 +1095,33 @@ public class CaptureWindowsPlugin implements PlugIn {
 			else
 				Rectangle.union(bounds, window.getBounds(), bounds);
 		}
-		BufferedImage imgScreen = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_INT_ARGB);
-		Graphics2D g2d = imgScreen.createGraphics();
+		if (bounds == null) {
+			IJ.log("Cannot create merged screenshot - no windows found!");
+			return false;
+		}
+		// Only keep the transparent background if the output format can store it
+		RasterCompositor compositor = new RasterCompositor(bounds, supportsTransparency(ext));
 
 		try {
 			boolean toFront = false;
-			Robot robot = new Robot();
-			for (Window window : windows) {
+			Robot robot = getRobot();
+			long compositeNanos = 0;
+			// Work down from the top window, so each capture can be copied and released before the next
+			for (int i = windows.length - 1; i >= 0; i--) {
+				Window window = windows[i];
 				if (!window.isVisible())
 					continue;
 
 				Rectangle windowBounds = window.getBounds();
 				BufferedImage img = capture(robot, window, toFront);
-
-				g2d.drawImage(img, windowBounds.x-bounds.x, windowBounds.y-bounds.y, null);
+				long startTime = System.nanoTime();
+				compositor.addBelow(img, windowBounds.x, windowBounds.y);
+				compositeNanos += System.nanoTime() - startTime;
 			}
+			CaptureMetrics.get().recordComposite(compositeNanos);
+			BufferedImage imgScreen = compositor.getImage();
+			if (keyOverlay != null)
+				keyOverlay.paint(imgScreen);
 
 			File file = makeFile(new File(dir), name, ext, ensureUnique);
 			saveImage(imgScreen, file);
@@ -401,14 +1132,85 @@ public class CaptureWindowsPlugin implements PlugIn {
 		}
 	}
 
+	/**
+	 * Record a video of a window until Escape is pressed or the window is closed.
+	 * Frames are captured at the requested rate and encoded on a background thread; 
+	 * frames are dropped if the encoder falls behind.
+	 * @param window the window to record
+	 * @param file the output file
+	 * @param fps the frame rate
+	 * @param format the video format
+	 * @param quality the quality, if using a lossy format
+	 * @param keyOverlay optional compositor to draw keypresses onto each frame; if used, the keypress display 
+	 *                   is hidden until recording stops, rather than around each frame, so it doesn't flicker
+	 * @throws AWTException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static void recordWindow(Window window, File file, double fps, VideoFormat format, float quality, KeyOverlayCompositor keyOverlay) throws AWTException, IOException, InterruptedException {
+		Robot robot = getRobot();
+		Rectangle bounds = window.getBounds();
+		long frameNanos = (long)(1e9 / fps);
+		
+		IJ.resetEscape();
+		IJ.showStatus("Recording " + file.getName() + "... (Escape to stop)");
+		FrameRecorder recorder = new FrameRecorder(format.createWriter(file, bounds.width, bounds.height, fps, quality), fps, 4);
+		CaptureMetrics metrics = CaptureMetrics.get();
+		metrics.setActiveRecorder(recorder);
+		if (keyOverlay != null)
+			InputDisplayPlugin.hideDisplay();
+		try {
+			long next = System.nanoTime();
+			while (!IJ.escapePressed() && window.isVisible() && recorder.getError() == null) {
+				// Use the current bounds, in case the window has moved
+				long startTime = System.nanoTime();
+				BufferedImage img = robot.createScreenCapture(window.getBounds(bounds));
+				metrics.recordGrab(System.nanoTime() - startTime);
+				if (keyOverlay != null)
+					keyOverlay.paint(img);
+				recorder.offer(img);
+				next += frameNanos;
+				long wait = next - System.nanoTime();
+				if (wait > 0)
+					TimeUnit.NANOSECONDS.sleep(wait);
+				else
+					next = System.nanoTime(); // We've fallen behind, don't try to catch up
+			}
+		} finally {
+			if (keyOverlay != null)
+				InputDisplayPlugin.restoreDisplay();
+			IJ.resetEscape();
+			try {
+				recorder.close();
+			} finally {
+				metrics.setActiveRecorder(null);
+				metrics.recordBytesWritten(file.length());
+			}
+		}
+		String message = "Saved " + recorder.getFramesWritten() + " frames to " + file.getName();
+		if (recorder.getFramesDropped() > 0)
+			message += " (" + recorder.getFramesDropped() + " dropped)";
+		IJ.showStatus(message);
+	}
+
 	/**
 	 * Get all windows, excluding windows associated with this capture plugin.
 	 * @return
 	 */
 	private static Window[] getWindows(boolean includeToolbar) {
+		return getWindows(includeToolbar, false);
+	}
+	
+	/**
+	 * Get all windows, excluding windows associated with this capture plugin and optionally the keypress display.
+	 * @return
+	 */
+	private static Window[] getWindows(boolean includeToolbar, boolean excludeKeyDisplay) {
 		Predicate<Window> filter = w -> !TITLE.equals(getTitle(w)) && w.isVisible();
 		if (!includeToolbar)
 			filter = filter.and(w -> !(w instanceof ImageJ));
+		if (excludeKeyDisplay)
+			filter = filter.and(w -> !InputDisplayPlugin.isDisplayWindow(w));
 		return Arrays.stream(Window.getWindows()).filter(filter).toArray(Window[]::new);
 	}
 
@@ -451,18 +1253,20 @@ public class CaptureWindowsPlugin implements PlugIn {
 	}
 
 
-	private static boolean saveWindows(String dir, String name, String ext, boolean ensureUnique, Window... windows) throws AWTException, IOException {
+	private static boolean saveWindows(String dir, String name, String ext, boolean ensureUnique, KeyOverlayCompositor keyOverlay, ImageWindowRenderer renderer, Window... windows) throws AWTException, IOException {
 		if (windows.length == 0)
 			return false;
 
-		Robot robot = new Robot();
+		Robot robot = getRobot();
 		boolean toFront = true;
 
 		for (Window window : windows) {
 			if (!window.isVisible())
 				continue;
 
-			BufferedImage img = capture(robot, window, toFront);
+			BufferedImage img = capture(robot, window, toFront, renderer);
+			if (keyOverlay != null)
+				keyOverlay.paint(img);
 
 			// Get a name from the window, if we need to
 			String windowName = name;
@@ -496,13 +1300,92 @@ public class CaptureWindowsPlugin implements PlugIn {
 			return file;
 	}
 
+	/**
+	 * Check whether images saved with the given extension can have a transparent background.
+	 */
+	private static boolean supportsTransparency(String ext) {
+		if (ext == null)
+			return false;
+		ext = ext.toLowerCase();
+		return ext.endsWith(".png") || ext.endsWith(".qoi");
+	}
+
 	private static void saveImage(BufferedImage img, File file) throws IOException {
-		// Write PNG with ImageIO, since it may have alpha
-		if (file.getName().toLowerCase().endsWith(".png"))
-			ImageIO.write(img, "PNG", file);
-		else {
-			ImagePlus imp = new ImagePlus(file.getName(), img);
-			IJ.save(imp, file.getAbsolutePath());
+		String name = file.getName().toLowerCase();
+		long startTime = System.nanoTime();
+		try {
+			// Write PNG with ImageIO, since it may have alpha
+			if (name.endsWith(".png"))
+				writePNG(img, file, false);
+			else if (name.endsWith(".qoi"))
+				writeQOI(img, file);
+			else {
+				ImagePlus imp = new ImagePlus(file.getName(), img);
+				fileWriter.writeExternal(file, temp -> IJ.save(imp, temp.getAbsolutePath()));
+			}
+		} catch (IOException e) {
+			CaptureMetrics.get().recordSaveError();
+			throw e;
+		}
+		CaptureMetrics.get().recordSave(System.nanoTime() - startTime, file.length());
+	}
+
+
+	/**
+	 * Write a PNG using the strongest compression available.
+	 * This is slower than when capturing, but gives smaller files.
+	 * @param img
+	 * @param file
+	 * @throws IOException
+	 */
+	static void writeCompressedPNG(BufferedImage img, File file) throws IOException {
+		writePNG(img, file, true);
+	}
+
+	/**
+	 * Write a QOI image using a pooled encoder.
+	 */
+	private static void writeQOI(BufferedImage img, File file) throws IOException {
+		QoiCodec codec = qoiCodecs.poll();
+		if (codec == null)
+			codec = new QoiCodec();
+		QoiCodec qoiCodec = codec;
+		try {
+			fileWriter.write(file, output -> qoiCodec.write(img, output));
+		} finally {
+			qoiCodecs.offer(codec);
+		}
+	}
+
+	/**
+	 * Write a PNG using a pooled encoder, to avoid looking up and creating a new one for every image.
+	 */
+	private static void writePNG(BufferedImage img, File file, boolean maxCompression) throws IOException {
+		ImageWriter writer = pngWriters.poll();
+		if (writer == null) {
+			Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("png");
+			if (!writers.hasNext())
+				throw new IOException("No PNG writer available");
+			writer = writers.next();
+		}
+		ImageWriter pngWriter = writer;
+		try {
+			fileWriter.write(file, output -> {
+				// Avoid ImageIO's disk cache - output is already buffered
+				try (ImageOutputStream stream = new MemoryCacheImageOutputStream(output)) {
+					pngWriter.setOutput(stream);
+					ImageWriteParam param = pngWriter.getDefaultWriteParam();
+					// Compression settings are only supported from Java 9
+					if (maxCompression && param.canWriteCompressed()) {
+						param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+						param.setCompressionQuality(0f);
+					}
+					pngWriter.write(null, new IIOImage(img, null, null), param);
+				}
+			});
+		} finally {
+			writer.reset();
+			pngWriters.offer(writer);
 		}
 	}
 
@@ -527,11 +1410,29 @@ public class CaptureWindowsPlugin implements PlugIn {
 	}
 
 
+	/**
+	 * Capture a window, rendering image windows from their pixels if a renderer is provided.
+	 */
+	private static BufferedImage capture(Robot robot, Window window, boolean toFront, ImageWindowRenderer renderer) throws AWTException {
+		if (renderer != null && renderer.canRender(window)) {
+			if (toFront)
+				window.toFront();
+			long startTime = System.nanoTime();
+			BufferedImage img = renderer.render(robot, (ImageWindow)window);
+			CaptureMetrics.get().recordGrab(System.nanoTime() - startTime);
+			return img;
+		}
+		return capture(robot, window, toFront);
+	}
+
+
 	private static BufferedImage capture(Robot robot, Window window, boolean toFront) throws AWTException {
 		if (toFront)
 			window.toFront();		
 		Rectangle windowBounds = window.getBounds();
+		long startTime = System.nanoTime();
 		BufferedImage img = robot.createScreenCapture(windowBounds);
+		CaptureMetrics.get().recordGrab(System.nanoTime() - startTime);
 		return img;
 	}
 
@@ -0,0 +1,139 @@
+package io.github.petebankhead.bioimage;
+
+import java.awt.Point;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ij.IJ;
+import ij.Prefs;
+
+/**
+ * Helper to persist preferences without blocking the caller.
+ * <p>
+ * {@link Prefs#savePreferences()} rewrites the whole ImageJ preferences file, which can be slow enough to notice
+ * when called on the Event Dispatch Thread after every capture.
+ * Here, values are set immediately in memory (so {@link Prefs#get(String, String)} sees them right away),
+ * but the file is only written from a background thread once no further changes have been requested
+ * for a short time. Any pending changes are written when the JVM shuts down, unless ImageJ has already quit
+ * (in which case it will have saved the preferences itself).
+ *
+ * @author Pete Bankhead
+ */
+class DeferredPrefs {
+
+	/**
+	 * Delay after the last save request before the preferences are written.
+	 * Each further request during this time postpones the write.
+	 */
+	private static final long SAVE_DELAY_MILLIS = 2000;
+
+	private static final Set<String> dirtyKeys = ConcurrentHashMap.newKeySet();
+
+	private static final Object lock = new Object();
+
+	private static ScheduledExecutorService executor;
+
+	private static ScheduledFuture<?> pendingSave;
+
+	private static final AtomicBoolean hookRegistered = new AtomicBoolean(false);
+
+	private DeferredPrefs() {}
+
+	static void set(String key, String value) {
+		Prefs.set(key, value);
+		markChanged(key);
+	}
+
+	static void set(String key, int value) {
+		Prefs.set(key, value);
+		markChanged(key);
+	}
+
+	static void set(String key, double value) {
+		Prefs.set(key, value);
+		markChanged(key);
+	}
+
+	static void set(String key, boolean value) {
+		Prefs.set(key, value);
+		markChanged(key);
+	}
+
+	static void saveLocation(String key, Point location) {
+		Prefs.saveLocation(key, location);
+		markChanged(key);
+	}
+
+	private static void markChanged(String key) {
+		dirtyKeys.add(key);
+		if (!hookRegistered.get() && hookRegistered.compareAndSet(false, true)) {
+			try {
+				Runtime.getRuntime().addShutdownHook(new Thread(DeferredPrefs::flushOnShutdown, "bioimage-prefs-shutdown"));
+			} catch (IllegalStateException e) {
+				// Already shutting down, so anyone changing preferences now must call flushOnShutdown() themselves
+			}
+		}
+	}
+
+	/**
+	 * Request that any changed preferences are written to disk soon, from a background thread.
+	 */
+	static synchronized void requestSave() {
+		if (dirtyKeys.isEmpty())
+			return;
+		if (pendingSave != null)
+			pendingSave.cancel(false);
+		pendingSave = getExecutor().schedule(DeferredPrefs::flush, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Write any changed preferences to disk immediately, on the calling thread.
+	 */
+	static void flush() {
+		synchronized (lock) {
+			if (dirtyKeys.isEmpty())
+				return;
+			int nKeys = dirtyKeys.size();
+			dirtyKeys.clear();
+			try {
+				Prefs.savePreferences();
+				if (IJ.debugMode)
+					IJ.log("Saved preferences (" + nKeys + " changed)");
+			} catch (Exception e) {
+				IJ.log("Unable to save preferences: " + e.getLocalizedMessage());
+			}
+		}
+	}
+
+	/**
+	 * Write any changed preferences while the JVM is shutting down.
+	 * Nothing is written if ImageJ has already quit, since it saves the preferences itself and
+	 * {@link Prefs#savePreferences()} expects the ImageJ instance to exist.
+	 */
+	static void flushOnShutdown() {
+		if (dirtyKeys.isEmpty())
+			return;
+		if (IJ.getInstance() == null) {
+			dirtyKeys.clear();
+			return;
+		}
+		flush();
+	}
+
+	private static synchronized ScheduledExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "bioimage-prefs-writer");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return executor;
+	}
+
+}
@@ -0,0 +1,198 @@
+package io.github.petebankhead.bioimage;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pass captured frames to a {@link FrameWriter} on a background thread.
+ * <p>
+ * Frames are held in a small bounded queue, so that memory use stays constant however long the recording is.
+ * If the writer can't keep up and the queue is full, new frames are dropped rather than blocking the capture.
+ * <p>
+ * Each frame is stamped with the time it was offered. Where frames have been dropped (or captured late),
+ * the previous frame is repeated to fill the gap - so playback at the nominal frame rate matches the time
+ * that was actually recorded.
+ *
+ * @author Pete Bankhead
+ */
+class FrameRecorder implements Closeable {
+
+	/**
+	 * Marker used to tell the worker thread that there are no more frames.
+	 */
+	private static final Frame END = new Frame(null, 0);
+
+	private final FrameWriter writer;
+	private final long frameNanos;
+	private final BlockingQueue<Frame> queue;
+	private final Thread worker;
+
+	private final AtomicLong framesOffered = new AtomicLong();
+	private final AtomicLong framesDropped = new AtomicLong();
+
+	private volatile IOException error;
+	private volatile boolean closed = false;
+
+	/**
+	 * Create a recorder and start its worker thread.
+	 * @param writer the writer to which frames should be passed
+	 * @param fps the frame rate used by the writer
+	 * @param queueSize maximum number of frames waiting to be written
+	 */
+	FrameRecorder(FrameWriter writer, double fps, int queueSize) {
+		if (fps <= 0)
+			throw new IllegalArgumentException("Frame rate must be positive, but was " + fps);
+		this.writer = writer;
+		this.frameNanos = (long)(1e9 / fps);
+		this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+		this.worker = new Thread(this::writeFrames, "bioimage-frame-writer");
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * Add a frame to the queue for writing, without blocking.
+	 * The image must not be modified afterwards.
+	 * @param img
+	 * @return true if the frame was queued, false if it was dropped (or the recorder has failed or been closed)
+	 */
+	boolean offer(BufferedImage img) {
+		framesOffered.incrementAndGet();
+		if (closed || error != null || !queue.offer(new Frame(img, System.nanoTime()))) {
+			framesDropped.incrementAndGet();
+			CaptureMetrics.get().recordFrameDropped();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Get the number of frames passed to {@link #offer(BufferedImage)}.
+	 */
+	long getFramesOffered() {
+		return framesOffered.get();
+	}
+
+	/**
+	 * Get the number of frames that were dropped because the writer couldn't keep up.
+	 */
+	long getFramesDropped() {
+		return framesDropped.get();
+	}
+
+	/**
+	 * Get the number of frames currently waiting to be written.
+	 */
+	int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * Get the number of frames actually written.
+	 */
+	int getFramesWritten() {
+		return writer.getFrameCount();
+	}
+
+	/**
+	 * Get any exception thrown by the writer.
+	 * @return the exception, or null if writing has been successful so far
+	 */
+	IOException getError() {
+		return error;
+	}
+
+	private void writeFrames() {
+		long startNanos = 0;
+		long nextIndex = 0;
+		try {
+			while (true) {
+				Frame frame = queue.take();
+				if (frame == END)
+					break;
+				// Keep draining the queue after an error, so that close() can't block
+				if (error != null)
+					continue;
+				try {
+					if (nextIndex == 0)
+						startNanos = frame.nanos;
+					// Position of the frame in the video, according to when it was captured
+					long index = Math.round((frame.nanos - startNanos) / (double)frameNanos);
+					if (index < nextIndex)
+						continue; // Captured early - the previous frame already covers this time
+					while (nextIndex < index) {
+						writer.repeatFrame();
+						nextIndex++;
+					}
+					long startTime = System.nanoTime();
+					writer.writeFrame(frame.img);
+					CaptureMetrics.get().recordFrameWrite(System.nanoTime() - startTime);
+					nextIndex++;
+				} catch (IOException e) {
+					error = e;
+				} catch (RuntimeException e) {
+					error = new IOException(e);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Write any queued frames, then close the writer.
+	 * @throws IOException if writing any frame, or closing the writer, failed
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		// The writer mustn't be closed while the worker might still be using it, so keep waiting if interrupted
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					queue.put(END);
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			while (worker.isAlive()) {
+				try {
+					worker.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+		writer.close();
+		if (error != null)
+			throw error;
+	}
+
+
+	/**
+	 * A captured image, and the time it was captured.
+	 */
+	private static class Frame {
+
+		private final BufferedImage img;
+		private final long nanos;
+
+		Frame(BufferedImage img, long nanos) {
+			this.img = img;
+			this.nanos = nanos;
+		}
+
+	}
+
+}
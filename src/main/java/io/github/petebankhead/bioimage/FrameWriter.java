@@ -0,0 +1,39 @@
+package io.github.petebankhead.bioimage;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination for a sequence of captured frames, such as a video file.
+ * <p>
+ * Frames are written in order from a single thread. 
+ * The output is only guaranteed to be complete once {@link #close()} has been called.
+ *
+ * @author Pete Bankhead
+ */
+interface FrameWriter extends Closeable {
+
+	/**
+	 * Append a frame to the output.
+	 * The image may be reused by the caller once this method returns.
+	 * @param img
+	 * @throws IOException
+	 */
+	void writeFrame(BufferedImage img) throws IOException;
+
+	/**
+	 * Show the last frame for one more frame interval, without needing to encode it again.
+	 * This is used to keep playback in step with the time frames were captured, if some were dropped.
+	 * Nothing is written if there hasn't yet been a frame.
+	 * @throws IOException
+	 */
+	void repeatFrame() throws IOException;
+
+	/**
+	 * Get the number of frames written so far.
+	 * @return
+	 */
+	int getFrameCount();
+
+}
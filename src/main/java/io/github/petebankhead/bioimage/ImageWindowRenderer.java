@@ -0,0 +1,233 @@
+package io.github.petebankhead.bioimage;
+
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Robot;
+import java.awt.Window;
+import java.awt.image.BufferedImage;
+
+import ij.ImagePlus;
+import ij.gui.ImageCanvas;
+import ij.gui.ImageWindow;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.gui.TextRoi;
+import ij.plugin.RoiScaler;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Render the content of an image window directly from its {@link ImagePlus}, rather than grabbing it from the screen.
+ * <p>
+ * The current plane is rendered with its display settings and any visible overlay, at a chosen scale.
+ * Overlay line widths and text sizes are scaled along with the image, as they would be when zooming in ImageJ.
+ * This makes the output independent of the zoom and screen scaling in use when the capture is made,
+ * and avoids a screen copy entirely when only the image is needed.
+ * Optionally, the window's own controls and borders can be grabbed from the screen and drawn around the rendered image,
+ * adjusted to fit its new size.
+ *
+ * @author Pete Bankhead
+ */
+class ImageWindowRenderer {
+
+	/**
+	 * How image windows should be captured.
+	 */
+	static enum Mode {
+
+		SCREEN("Screen grab"),
+		IMAGE("Image only"),
+		WINDOW("Image in window");
+
+		private final String name;
+
+		Mode(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+
+	}
+
+	private final Mode mode;
+	private final double scale;
+
+	/**
+	 * Create a renderer.
+	 * @param mode how image windows should be captured
+	 * @param scale scale at which images should be rendered, where 1 means one output pixel per image pixel
+	 */
+	ImageWindowRenderer(Mode mode, double scale) {
+		if (!(scale > 0))
+			throw new IllegalArgumentException("Scale must be positive, but was " + scale);
+		this.mode = mode;
+		this.scale = scale;
+	}
+
+	/**
+	 * Check whether a window will be rendered rather than grabbed from the screen.
+	 * @param window
+	 * @return true if {@link #render(Robot, ImageWindow)} should be used for the window
+	 */
+	boolean canRender(Window window) {
+		return mode != Mode.SCREEN && window instanceof ImageWindow && ((ImageWindow)window).getImagePlus() != null;
+	}
+
+	/**
+	 * Render an image window.
+	 * @param robot robot used to grab the window controls, if they are needed
+	 * @param window the window to render
+	 * @return the rendered image
+	 */
+	BufferedImage render(Robot robot, ImageWindow window) {
+		BufferedImage img = renderImage(window.getImagePlus(), scale);
+		if (mode != Mode.WINDOW)
+			return img;
+		ImageCanvas canvas = window.getCanvas();
+		if (canvas == null || !canvas.isShowing())
+			return img;
+
+		Rectangle windowBounds = window.getBounds();
+		Point canvasLocation = canvas.getLocationOnScreen();
+		Rectangle canvasBounds = new Rectangle(
+				canvasLocation.x - windowBounds.x, canvasLocation.y - windowBounds.y,
+				canvas.getWidth(), canvas.getHeight());
+		BufferedImage imgWindow = robot.createScreenCapture(windowBounds);
+		return compositeWindow(imgWindow, canvasBounds, img);
+	}
+
+	/**
+	 * Render the current plane of an image, with its display settings and overlay, at the specified scale.
+	 * @param imp
+	 * @param scale
+	 * @return an RGB image
+	 */
+	static BufferedImage renderImage(ImagePlus imp, double scale) {
+		int width = Math.max(1, (int)Math.round(imp.getWidth() * scale));
+		int height = Math.max(1, (int)Math.round(imp.getHeight() * scale));
+
+		// The AWT image already has LUTs, display ranges & channel compositing applied
+		ImageProcessor ip = new ColorProcessor(imp.getImage());
+		if (width != ip.getWidth() || height != ip.getHeight()) {
+			// Keep pixels sharp when enlarging, but average when reducing to avoid aliasing
+			if (scale > 1) {
+				ip.setInterpolationMethod(ImageProcessor.NONE);
+				ip = ip.resize(width, height);
+			} else {
+				ip.setInterpolationMethod(ImageProcessor.BILINEAR);
+				ip = ip.resize(width, height, true);
+			}
+		}
+		ImagePlus impRendered = new ImagePlus(imp.getTitle(), ip);
+
+		Overlay overlay = imp.getHideOverlay() ? null : imp.getOverlay();
+		if (overlay != null && overlay.size() > 0) {
+			impRendered.setOverlay(scaleOverlay(overlay, imp, scale));
+			impRendered = impRendered.flatten();
+		}
+		return impRendered.getBufferedImage();
+	}
+
+	/**
+	 * Get a copy of an overlay containing only the ROIs shown on the current plane, scaled.
+	 * Stroke widths and text ROI fonts are set from the original ROI, so the result doesn't depend upon
+	 * whether {@link RoiScaler} has already adjusted them.
+	 */
+	private static Overlay scaleOverlay(Overlay overlay, ImagePlus imp, double scale) {
+		Overlay scaled = overlay.duplicate();
+		scaled.clear();
+		for (Roi roi : overlay.toArray()) {
+			if (!isOnCurrentPlane(roi, imp))
+				continue;
+			Roi roi2 = scale == 1 ? (Roi)roi.clone() : RoiScaler.scale(roi, scale, scale, false);
+			if (scale != 1) {
+				// A width of 0 means a 1-pixel line, which should be scaled too
+				double strokeWidth = Math.max(1, roi.getStrokeWidth()) * scale;
+				roi2.setStrokeWidth(strokeWidth <= 1 ? 0 : (float)strokeWidth);
+				if (roi instanceof TextRoi && roi2 instanceof TextRoi) {
+					Font font = ((TextRoi)roi).getCurrentFont();
+					if (font != null)
+						((TextRoi)roi2).setCurrentFont(font.deriveFont((float)(font.getSize2D() * scale)));
+				}
+			}
+			// Rendered image only has one plane
+			roi2.setPosition(0);
+			scaled.add(roi2);
+		}
+		return scaled;
+	}
+
+	private static boolean isOnCurrentPlane(Roi roi, ImagePlus imp) {
+		if (roi.hasHyperStackPosition()) {
+			int c = roi.getCPosition();
+			int z = roi.getZPosition();
+			int t = roi.getTPosition();
+			return (c == 0 || c == imp.getChannel()) &&
+					(z == 0 || z == imp.getSlice()) &&
+					(t == 0 || t == imp.getFrame());
+		}
+		int position = roi.getPosition();
+		return position == 0 || position == imp.getCurrentSlice();
+	}
+
+	/**
+	 * Replace the canvas region of a window screenshot with a rendered image, which may have a different size.
+	 * <p>
+	 * Everything outside the canvas is kept, shifted as needed. Controls above or below the canvas (and borders beside it)
+	 * are cropped if the image is smaller than the canvas, or extended by repeating their last column (or row) if it is larger.
+	 * @param imgWindow screenshot of the window
+	 * @param canvasBounds bounds of the canvas within the window screenshot
+	 * @param img rendered image to show in place of the canvas
+	 * @return the composite image
+	 */
+	static BufferedImage compositeWindow(BufferedImage imgWindow, Rectangle canvasBounds, BufferedImage img) {
+		Rectangle content = canvasBounds.intersection(new Rectangle(0, 0, imgWindow.getWidth(), imgWindow.getHeight()));
+		if (content.isEmpty())
+			return img;
+
+		int[][] xSegments = splitAxis(content.x, content.width, imgWindow.getWidth(), img.getWidth());
+		int[][] ySegments = splitAxis(content.y, content.height, imgWindow.getHeight(), img.getHeight());
+		int width = imgWindow.getWidth() - content.width + img.getWidth();
+		int height = imgWindow.getHeight() - content.height + img.getHeight();
+
+		BufferedImage imgOutput = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g2d = imgOutput.createGraphics();
+		for (int[] x : xSegments) {
+			if (x[3] <= x[2])
+				continue;
+			for (int[] y : ySegments) {
+				if (y[3] <= y[2] || (x[4] == 1 && y[4] == 1))
+					continue;
+				g2d.drawImage(imgWindow, x[2], y[2], x[3], y[3], x[0], y[0], x[1], y[1], null);
+			}
+		}
+		g2d.drawImage(img, content.x, content.y, null);
+		g2d.dispose();
+		return imgOutput;
+	}
+
+	/**
+	 * Split one axis of the window into segments before, within and after the canvas,
+	 * given the new length of the canvas.
+	 * @return an array of segments, each containing the source start and end, destination start and end,
+	 *         and 1 if the segment is part of the canvas (or 0 otherwise)
+	 */
+	private static int[][] splitAxis(int start, int length, int total, int newLength) {
+		int end = start + length;
+		int shift = newLength - length;
+		int overlap = Math.min(length, newLength);
+		return new int[][] {
+			{0, start, 0, start, 0},
+			{start, start + overlap, start, start + overlap, 1},
+			// Stretch the last pixel if the canvas has grown
+			{end - 1, end, start + overlap, start + newLength, 1},
+			{end, total, end + shift, total + shift, 0}
+		};
+	}
+
+}
@@ -1,28 +1,39 @@
 package io.github.petebankhead.bioimage;
 
+import java.awt.AlphaComposite;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Cursor;
 import java.awt.Dimension;
+import java.awt.DisplayMode;
+import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsDevice;
+import java.awt.GraphicsEnvironment;
 import java.awt.KeyEventPostProcessor;
 import java.awt.KeyboardFocusManager;
 import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.Window;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.regex.Pattern;
 
+import javax.swing.JComponent;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 import ij.IJ;
 import ij.ImageJ;
@@ -125,35 +136,30 @@ public class InputDisplayPlugin implements PlugIn {
     		
     	}
     	
-    	void pickPoint(Rectangle bounds, Point p) {
-    		switch(this) {
-    		case E:
-    		case SE:
-    		case NE:
-    			p.x = bounds.width;
-    			break;
-    		case W:
-    		case SW:
-    		case NW:
-    			p.x = 0;
-    			break;
-    		default:
-    			break;
+    	/**
+    	 * Enforce a minimum size, keeping the edges that are not being dragged fixed in place.
+    	 */
+    	void clampToMinimum(Rectangle bounds, Dimension minSize) {
+    		if (bounds.width < minSize.width) {
+    			switch(this) {
+    			case W:
+    			case SW:
+    			case NW:
+    				bounds.x -= minSize.width - bounds.width;
+    			default:
+    				bounds.width = minSize.width;
+    			}
     		}
     		
-    		switch(this) {
-    		case N:
-    		case NE:
-    		case NW:
-    			p.y = 0;
-    			break;
-    		case S:
-    		case SE:
-    		case SW:
-    			p.y = bounds.height;
-    			break;
-    		default:
-    			break;
+    		if (bounds.height < minSize.height) {
+    			switch(this) {
+    			case N:
+    			case NE:
+    			case NW:
+    				bounds.y -= minSize.height - bounds.height;
+    			default:
+    				bounds.height = minSize.height;
+    			}
     		}
     	}
     	
@@ -185,20 +191,58 @@ public class InputDisplayPlugin implements PlugIn {
     
     /**
      * Listener for mouse events on a stage without decorations.
+     * <p>
+     * Drag events can arrive much faster than the display refreshes, so the target bounds are 
+     * tracked exactly from the pointer but only applied to the window once per display frame.
      */
     static class KeyEventMouseListener extends MouseAdapter {
         
         private JFrame frame;
-        private Point p;
-        private Point pFrame;
-        private Rectangle bounds;
+        private Point pScreen;
+        private Rectangle startBounds = new Rectangle();
+        private Rectangle pendingBounds = new Rectangle();
+        private Rectangle appliedBounds = new Rectangle();
         private int resizeDistance = 10;
         
         private ResizeDirection resize = ResizeDirection.NONE;
+        
+        private Timer timer;
+        
+        private long dragEventCount = 0;
+        private long boundsUpdateCount = 0;
 
         KeyEventMouseListener(JFrame frame) {
             super();
             this.frame = frame;
+            this.timer = new Timer(getFrameMillis(), e -> applyPendingBounds());
+            this.timer.setRepeats(false);
+        }
+        
+        /**
+         * Get the number of drag events received.
+         */
+        long getDragEventCount() {
+        	return dragEventCount;
+        }
+        
+        /**
+         * Get the number of times the window bounds have actually been updated in response to dragging.
+         */
+        long getBoundsUpdateCount() {
+        	return boundsUpdateCount;
+        }
+        
+        private static int getFrameMillis() {
+        	int refreshRate = DisplayMode.REFRESH_RATE_UNKNOWN;
+        	try {
+        		refreshRate = GraphicsEnvironment.getLocalGraphicsEnvironment()
+        				.getDefaultScreenDevice().getDisplayMode().getRefreshRate();
+        	} catch (Exception e) {
+        		// Use default
+        	}
+        	if (refreshRate <= 0)
+        		refreshRate = 60;
+        	return Math.max(1, 1000 / refreshRate);
         }
         
         @Override
@@ -228,7 +272,10 @@ public class InputDisplayPlugin implements PlugIn {
         @Override
         public void mousePressed(MouseEvent e) {
             super.mousePressed(e);
-            p = e.getPoint();
+            pScreen = e.getLocationOnScreen();
+            startBounds = frame.getBounds(startBounds);
+            pendingBounds.setBounds(startBounds);
+            appliedBounds.setBounds(startBounds);
             updateResizing(e);
         }
         
@@ -256,31 +303,97 @@ public class InputDisplayPlugin implements PlugIn {
         @Override
         public void mouseReleased(MouseEvent e) {
             super.mouseReleased(e);
-            p = null;
+            if (pScreen == null)
+            	return;
+            pScreen = null;
+            // Make sure we end up exactly where the pointer was released
+            timer.stop();
+            applyPendingBounds();
+            if (IJ.debugMode)
+            	IJ.log("Overlay drag: " + dragEventCount + " events, " + boundsUpdateCount + " window updates");
         }
 
         @Override
         public void mouseDragged(MouseEvent e) {
             super.mouseDragged(e);
-            if (p == null)
+            if (pScreen == null)
                 return; // Shouldn't happen
-            Point pNew = e.getPoint();
-            int dx = pNew.x - p.x;
-            int dy = pNew.y - p.y;
+            dragEventCount++;
+            // Use screen coordinates, since the window may not have caught up with the pointer
+            int dx = e.getXOnScreen() - pScreen.x;
+            int dy = e.getYOnScreen() - pScreen.y;
+            pendingBounds.setBounds(startBounds);
             if (resize == ResizeDirection.NONE) {
-	            pFrame = frame.getLocation(pFrame);
-	            pFrame.translate(dx, dy);
-	            frame.setLocation(pFrame);            	            	
+            	pendingBounds.translate(dx, dy);
             } else {
-            	bounds = frame.getBounds(bounds);
-            	resize.updateBounds(bounds, dx, dy);
-            	frame.setBounds(bounds);
-            	bounds = frame.getBounds(bounds);
-            	resize.pickPoint(bounds, p);
+            	resize.updateBounds(pendingBounds, dx, dy);
+            	resize.clampToMinimum(pendingBounds, frame.getMinimumSize());
             }
+            if (!timer.isRunning())
+            	timer.start();
+        }
+        
+        private void applyPendingBounds() {
+        	if (pendingBounds.equals(appliedBounds))
+        		return;
+        	if (resize == ResizeDirection.NONE)
+        		frame.setLocation(pendingBounds.x, pendingBounds.y);
+        	else
+        		frame.setBounds(pendingBounds);
+        	appliedBounds.setBounds(pendingBounds);
+        	boundsUpdateCount++;
         }
     }
 
+    /**
+     * Immutable snapshot of the keys currently pressed, which can be read from any thread.
+     */
+    static class KeyState {
+    	
+    	static final KeyState EMPTY = new KeyState("", null, null, 0L);
+    	
+    	private final String keys;
+    	private final String command;
+    	private final String lastChord;
+    	private final long lastChordMillis;
+    	
+    	private KeyState(String keys, String command, String lastChord, long lastChordMillis) {
+    		this.keys = keys;
+    		this.command = command;
+    		this.lastChord = lastChord;
+    		this.lastChordMillis = lastChordMillis;
+    	}
+    	
+    	/**
+    	 * Get the keys currently held, or an empty string if there are none.
+    	 */
+    	String getKeys() {
+    		return keys;
+    	}
+    	
+    	/**
+    	 * Get the command triggered by the keys currently held, or null if there is none.
+    	 */
+    	String getCommand() {
+    		return command;
+    	}
+    	
+    	/**
+    	 * Get the most recent chord (including any command), or null if no chord has been pressed.
+    	 */
+    	String getLastChord() {
+    		return lastChord;
+    	}
+    	
+    	/**
+    	 * Get the time at which the most recent chord was pressed, in milliseconds.
+    	 */
+    	long getLastChordMillis() {
+    		return lastChordMillis;
+    	}
+    	
+    }
+    
     /**
      * KeyEvent processor to log when keys are pressed somewhere.
      */
@@ -288,20 +401,60 @@ public class InputDisplayPlugin implements PlugIn {
         
     	private String separator = " ";
         private JLabel label;
+        private KeyHistoryPanel history;
+        private JLabel commandLabel;
+        private ShortcutIndex shortcuts;
         private Set<String> keys = new TreeSet<>();
+        
+        private volatile KeyState state = KeyState.EMPTY;
+        
+        private final InputMetrics metrics = InputMetrics.get();
 
         KeyEventLogger(JLabel label) {
+            this(label, null);
+        }
+        
+        /**
+         * Create a logger that also records completed chords in a history strip.
+         * @param label label showing the keys currently held
+         * @param history optional history strip; may be null
+         */
+        KeyEventLogger(JLabel label, KeyHistoryPanel history) {
             this.label = label;
+            this.history = history;
+        }
+        
+        /**
+         * Show the ImageJ command triggered by the current chord.
+         * @param commandLabel label used to display the command name
+         * @param shortcuts index used to look up commands
+         */
+        void setCommandDisplay(JLabel commandLabel, ShortcutIndex shortcuts) {
+        	this.commandLabel = commandLabel;
+        	this.shortcuts = shortcuts;
+        }
+        
+        /**
+         * Get the current key state. This doesn't require any locking, so may be called from any thread.
+         */
+        KeyState getState() {
+        	return state;
         }
 
         @Override
         public boolean postProcessKeyEvent(KeyEvent event) {
+            metrics.recordEvent();
             String eventText = KeyEvent.getKeyText(event.getKeyCode());
+            boolean chordPressed = false;
+            boolean repeat = false;
             if (event.getID() == KeyEvent.KEY_RELEASED) {
                 keys.remove(eventText);
             } else if (event.getID() == KeyEvent.KEY_PRESSED) {
-                if (eventText != null && !eventText.isEmpty())
-                    keys.add(eventText);
+                if (eventText != null && !eventText.isEmpty()) {
+                    // Auto-repeat gives us a stream of presses for a key we already have
+                    repeat = !keys.add(eventText);
+                    chordPressed = !isModifier(event.getKeyCode());
+                }
             }
             
             // By default, we get modifiers at the end... but they look more sensible at the beginning
@@ -321,10 +474,45 @@ public class InputDisplayPlugin implements PlugIn {
                 }
             }
             String s = sb.toString();
+            if (!s.equals(this.label.getText()))
+            	metrics.recordUpdate(event.getWhen());
             this.label.setText(s);
+            
+            String command = null;
+            if (chordPressed && shortcuts != null) {
+            	if (!repeat)
+            		shortcuts.refreshIfChanged();
+            	command = shortcuts.lookup(event);
+            }
+            if (commandLabel != null && (chordPressed || keys.isEmpty()))
+            	commandLabel.setText(command);
+            
+            // Publish a new snapshot for anyone reading from another thread
+            KeyState previous = state;
+            if (chordPressed) {
+            	String chord = command == null ? s : s + " - " + command;
+            	state = new KeyState(s, command, chord, System.currentTimeMillis());
+            	if (history != null)
+            		history.push(chord, repeat);
+            } else if (!s.equals(previous.keys)) {
+            	state = new KeyState(s, keys.isEmpty() ? null : previous.command, previous.lastChord, previous.lastChordMillis);
+            }
             return false;
         }
         
+        private static boolean isModifier(int keyCode) {
+        	switch (keyCode) {
+        	case KeyEvent.VK_SHIFT:
+        	case KeyEvent.VK_CONTROL:
+        	case KeyEvent.VK_ALT:
+        	case KeyEvent.VK_ALT_GRAPH:
+        	case KeyEvent.VK_META:
+        		return true;
+        	default:
+        		return false;
+        	}
+        }
+        
         private static Pattern pattern = Pattern.compile("[a-zA-Z0-9]+");
         
         private static boolean isAlphanumeric(String key) {
@@ -334,9 +522,226 @@ public class InputDisplayPlugin implements PlugIn {
     }
     
     
+    /**
+     * Strip showing the most recent chords, fading them out over time.
+     * <p>
+     * Chords are stored in a fixed number of slots used as a ring buffer, and a single Swing timer 
+     * drives the fade for all of them. The timer is stopped as soon as every slot has faded out, 
+     * so an idle overlay doesn't need to do any work.
+     */
+    static class KeyHistoryPanel extends JComponent {
+    	
+		private static final long serialVersionUID = 3165390937465000473L;
+
+		/**
+		 * Timer delay while animating; around 25 frames per second is plenty for a fade.
+		 */
+		private static final int FRAME_MILLIS = 40;
+		
+		private final String[] slotText;
+		private final long[] slotTime;
+		private int newest = -1;
+		
+		private long holdMillis;
+		private long fadeMillis;
+		
+		private final Timer timer;
+		
+		/**
+		 * Create a history strip.
+		 * @param size maximum number of chords to show
+		 * @param holdMillis time for which a chord is shown at full opacity
+		 * @param fadeMillis time taken for a chord to fade out after it has been held
+		 */
+		KeyHistoryPanel(int size, long holdMillis, long fadeMillis) {
+			super();
+			this.slotText = new String[Math.max(1, size)];
+			this.slotTime = new long[slotText.length];
+			this.holdMillis = Math.max(0, holdMillis);
+			this.fadeMillis = Math.max(1, fadeMillis);
+			this.timer = new Timer(FRAME_MILLIS, e -> tick());
+			this.timer.setCoalesce(true);
+			setForeground(Color.WHITE);
+			setOpaque(false);
+		}
+		
+		/**
+		 * Add a chord to the history.
+		 * @param chord text for the chord
+		 * @param repeat true if this is an auto-repeat of the newest chord, in which case it is 
+		 *               refreshed rather than added again
+		 */
+		void push(String chord, boolean repeat) {
+			if (chord == null || chord.isEmpty())
+				return;
+			long now = System.currentTimeMillis();
+			if (repeat && newest >= 0 && chord.equals(slotText[newest])) {
+				slotTime[newest] = now;
+			} else {
+				newest = (newest + 1) % slotText.length;
+				slotText[newest] = chord;
+				slotTime[newest] = now;
+			}
+			if (!timer.isRunning())
+				timer.start();
+			repaint();
+		}
+		
+		/**
+		 * Remove all chords and stop animating.
+		 */
+		void clear() {
+			timer.stop();
+			Arrays.fill(slotText, null);
+			newest = -1;
+			repaint();
+		}
+		
+		private void tick() {
+			long now = System.currentTimeMillis();
+			boolean animating = false;
+			for (int i = 0; i < slotText.length; i++) {
+				if (slotText[i] == null)
+					continue;
+				if (now - slotTime[i] >= holdMillis + fadeMillis)
+					slotText[i] = null;
+				else
+					animating = true;
+			}
+			if (!animating)
+				timer.stop();
+			repaint();
+		}
+		
+		private float getAlpha(int slot, long now) {
+			long age = now - slotTime[slot];
+			if (age <= holdMillis)
+				return 1f;
+			float alpha = 1f - (float)(age - holdMillis) / fadeMillis;
+			return Math.max(0f, Math.min(1f, alpha));
+		}
+		
+		@Override
+		protected void paintComponent(Graphics g) {
+			super.paintComponent(g);
+			if (newest < 0)
+				return;
+			Graphics2D g2d = (Graphics2D)g.create();
+			g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+			g2d.setFont(getFont());
+			g2d.setColor(getForeground());
+			FontMetrics metrics = g2d.getFontMetrics();
+			int lineHeight = metrics.getHeight();
+			long now = System.currentTimeMillis();
+			
+			// Draw newest at the bottom, working upwards until we run out of slots or space
+			int y = getHeight() - metrics.getDescent();
+			for (int n = 0; n < slotText.length && y > 0; n++) {
+				int slot = (newest - n + slotText.length) % slotText.length;
+				String text = slotText[slot];
+				if (text == null)
+					continue;
+				float alpha = getAlpha(slot, now);
+				if (alpha <= 0f)
+					continue;
+				g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, alpha));
+				int x = (getWidth() - metrics.stringWidth(text)) / 2;
+				g2d.drawString(text, x, y);
+				y -= lineHeight;
+			}
+			g2d.dispose();
+		}
+    	
+    }
+    
+    
     private static String PREFS_KEY = InputDisplayPlugin.class.getCanonicalName();
     
-    private static JFrame frame;
+    private static volatile JFrame frame;
+    
+    private static volatile KeyEventLogger activeLogger;
+    
+    /**
+     * Get the keys currently pressed, if the keypress display is running.
+     * This may be called from any thread.
+     * @return the current key state, or null if the keypress display isn't running
+     */
+    static KeyState getActiveKeyState() {
+    	KeyEventLogger logger = activeLogger;
+    	return logger == null ? null : logger.getState();
+    }
+    
+    /**
+     * Check if a window is the keypress display itself.
+     * This may be called from any thread.
+     * @param window
+     * @return true if the window is currently used to show keypresses, false otherwise
+     */
+    static boolean isDisplayWindow(Window window) {
+    	return window != null && window == frame;
+    }
+    
+    /**
+     * Time to allow the window system to remove the display from the screen after hiding it.
+     */
+    private static final long HIDE_DELAY_MILLIS = 100;
+    
+    /**
+     * Number of captures currently requiring the display to be hidden; only accessed on the Event Dispatch Thread.
+     */
+    private static int hideCount;
+    
+    /**
+     * Hide the keypress display, so that it isn't captured along with the keys drawn by a {@link KeyOverlayCompositor}.
+     * The display is made fully transparent rather than closed, so that it keeps tracking keys.
+     * Calls are counted, and the display is only shown again once each has been matched by {@link #restoreDisplay()}.
+     * <p>
+     * This may be called from any thread, and returns once the display has been removed from the screen.
+     */
+    static void hideDisplay() {
+    	boolean[] hidden = new boolean[1];
+    	Runnable runnable = () -> {
+    		if (hideCount++ == 0 && frame != null && frame.isVisible()) {
+    			setHidden(frame, true);
+    			hidden[0] = true;
+    		}
+    	};
+    	try {
+    		if (SwingUtilities.isEventDispatchThread())
+    			runnable.run();
+    		else
+    			SwingUtilities.invokeAndWait(runnable);
+    		if (hidden[0])
+    			Thread.sleep(HIDE_DELAY_MILLIS);
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    	} catch (InvocationTargetException e) {
+    		IJ.log("Unable to hide keypress display: " + e.getCause().getLocalizedMessage());
+    	}
+    }
+    
+    /**
+     * Show the keypress display again after a call to {@link #hideDisplay()}.
+     * This may be called from any thread.
+     */
+    static void restoreDisplay() {
+    	SwingUtilities.invokeLater(() -> {
+    		if (hideCount > 0 && --hideCount == 0 && frame != null)
+    			setHidden(frame, false);
+    	});
+    }
+    
+    /**
+     * Hide or show a display window, preferably by changing its opacity - since that avoids changing the focus
+     * or exposing the windows below, which could cause them to repaint.
+     */
+    private static void setHidden(JFrame frame, boolean hidden) {
+    	GraphicsDevice device = frame.getGraphicsConfiguration().getDevice();
+    	if (device.isWindowTranslucencySupported(GraphicsDevice.WindowTranslucency.TRANSLUCENT))
+    		frame.setOpacity(hidden ? 0f : 1f);
+    	else
+    		frame.setVisible(!hidden);
+    }
     
     private int x = 25;
     private int y = 25;
@@ -345,7 +750,20 @@ public class InputDisplayPlugin implements PlugIn {
     private int arc = 50;
     private float fontSize = 24f;
     private float opacity = 0.75f;
+    private int historySize = 0;
+    private int historyHoldMillis = 1500;
+    private int historyFadeMillis = 1000;
+    private boolean showCommands = true;
+    
+    /**
+     * Default number of chords to show if history is requested, but no size is set in the preferences.
+     */
+    private static int DEFAULT_HISTORY_SIZE = 5;
 
+	/**
+	 * Toggle the keypress display.
+	 * @param arg optionally "history" to show a strip of recent chords, as well as the keys currently held
+	 */
 	@Override
 	public void run(String arg) {
 		if (frame == null) {
@@ -365,14 +783,9 @@ public class InputDisplayPlugin implements PlugIn {
 	        frame.setContentPane(container);
 	        frame.setAlwaysOnTop(true);
 	
-	        JLabel label = new JLabel();
-	        label.setHorizontalAlignment(JLabel.CENTER);
-	        label.setForeground(Color.WHITE);
-	        label.setFont(label.getFont().deriveFont(fontSize));
-	        container.add(label, BorderLayout.CENTER);
-	        
-	        KeyEventLogger logger = new KeyEventLogger(label);
+	        KeyEventLogger logger = createOverlayContent(container, "history".equalsIgnoreCase(arg));
 	        manager.addKeyEventPostProcessor(logger);
+	        activeLogger = logger;
 	
 	        KeyEventMouseListener mouseListener = new KeyEventMouseListener(frame);
 	        frame.addMouseMotionListener(mouseListener);
@@ -383,6 +796,10 @@ public class InputDisplayPlugin implements PlugIn {
 	            public void windowClosing(WindowEvent e) {
 	                super.windowClosing(e);
 	                manager.removeKeyEventPostProcessor(logger);
+	                if (activeLogger == logger)
+	                	activeLogger = null;
+	                if (logger.history != null)
+	                	logger.history.clear();
 	                savePrefs();
 	                frame = null;
 	            }
@@ -392,12 +809,65 @@ public class InputDisplayPlugin implements PlugIn {
 	        frame.setSize(width, height);
 	        frame.setLocation(x, y);
 	        frame.setVisible(true);
+	        JFrame f = frame;
+	        // A capture with keys drawn on may already be in progress
+	        SwingUtilities.invokeLater(() -> {
+	        	if (hideCount > 0)
+	        		setHidden(f, true);
+	        });
 		} else {
             frame.dispatchEvent(new WindowEvent(frame, WindowEvent.WINDOW_CLOSING));
             frame = null;
 		}
 	}
 	
+	/**
+	 * Add the labels used to display keypresses to a container, and create the logger that updates them.
+	 * The logger still needs to be registered with the keyboard focus manager.
+	 * @param container container with a {@link BorderLayout}
+	 * @param showHistory if true, include a strip showing recent chords
+	 * @return
+	 */
+	KeyEventLogger createOverlayContent(JPanel container, boolean showHistory) {
+		JLabel label = new KeyLabel();
+		label.setHorizontalAlignment(JLabel.CENTER);
+		label.setForeground(Color.WHITE);
+		label.setFont(label.getFont().deriveFont(fontSize));
+		
+		JComponent current = label;
+		JLabel commandLabel = null;
+		if (showCommands) {
+			commandLabel = new JLabel();
+			commandLabel.setHorizontalAlignment(JLabel.CENTER);
+			commandLabel.setForeground(Color.LIGHT_GRAY);
+			commandLabel.setFont(label.getFont().deriveFont(fontSize * 0.6f));
+			JPanel panelCurrent = new JPanel(new BorderLayout());
+			panelCurrent.setOpaque(false);
+			panelCurrent.add(label, BorderLayout.CENTER);
+			panelCurrent.add(commandLabel, BorderLayout.SOUTH);
+			current = panelCurrent;
+		}
+		
+		KeyHistoryPanel history = null;
+		if (showHistory) {
+			if (historySize <= 0)
+				historySize = DEFAULT_HISTORY_SIZE;
+			history = new KeyHistoryPanel(historySize, historyHoldMillis, historyFadeMillis);
+			history.setFont(label.getFont().deriveFont(fontSize * 0.75f));
+			container.add(history, BorderLayout.CENTER);
+			container.add(current, BorderLayout.SOUTH);
+		} else
+			container.add(current, BorderLayout.CENTER);
+		
+		KeyEventLogger logger = new KeyEventLogger(label, history);
+		if (showCommands) {
+			ShortcutIndex shortcuts = new ShortcutIndex();
+			shortcuts.refreshIfChanged();
+			logger.setCommandDisplay(commandLabel, shortcuts);
+		}
+		return logger;
+	}
+	
 	
 	private void loadPrefs() {
         x = (int)Prefs.get(PREFS_KEY + ".x", x);
@@ -407,6 +877,10 @@ public class InputDisplayPlugin implements PlugIn {
         fontSize = (float)Prefs.get(PREFS_KEY + ".fontSize", fontSize);
         opacity = (float)Prefs.get(PREFS_KEY + ".opacity", opacity);
         arc = (int)Prefs.get(PREFS_KEY + ".arc", arc);        	
+        historySize = (int)Prefs.get(PREFS_KEY + ".historySize", historySize);
+        historyHoldMillis = (int)Prefs.get(PREFS_KEY + ".historyHoldMillis", historyHoldMillis);
+        historyFadeMillis = (int)Prefs.get(PREFS_KEY + ".historyFadeMillis", historyFadeMillis);
+        showCommands = Prefs.get(PREFS_KEY + ".showCommands", showCommands);
 	}
 	
 	private void savePrefs() {
@@ -416,17 +890,39 @@ public class InputDisplayPlugin implements PlugIn {
 			width = frame.getWidth();
 			height = frame.getHeight();
 		}
-        Prefs.set(PREFS_KEY + ".x", x);
-        Prefs.set(PREFS_KEY + ".y", y);
-        Prefs.set(PREFS_KEY + ".width", width);
-        Prefs.set(PREFS_KEY + ".height", height);
-        Prefs.set(PREFS_KEY + ".fontSize", fontSize);
-        Prefs.set(PREFS_KEY + ".opacity", opacity);
-        Prefs.set(PREFS_KEY + ".arc", arc); 
-        Prefs.savePreferences();
+        DeferredPrefs.set(PREFS_KEY + ".x", x);
+        DeferredPrefs.set(PREFS_KEY + ".y", y);
+        DeferredPrefs.set(PREFS_KEY + ".width", width);
+        DeferredPrefs.set(PREFS_KEY + ".height", height);
+        DeferredPrefs.set(PREFS_KEY + ".fontSize", fontSize);
+        DeferredPrefs.set(PREFS_KEY + ".opacity", opacity);
+        DeferredPrefs.set(PREFS_KEY + ".arc", arc); 
+        DeferredPrefs.set(PREFS_KEY + ".historySize", historySize);
+        DeferredPrefs.set(PREFS_KEY + ".historyHoldMillis", historyHoldMillis);
+        DeferredPrefs.set(PREFS_KEY + ".historyFadeMillis", historyFadeMillis);
+        DeferredPrefs.set(PREFS_KEY + ".showCommands", showCommands);
+        DeferredPrefs.requestSave();
 	}
 
 	
+	/**
+	 * Label showing the keys currently pressed, which records when it has been painted.
+	 */
+	static class KeyLabel extends JLabel {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final InputMetrics metrics = InputMetrics.get();
+		
+		@Override
+		protected void paintComponent(Graphics g) {
+			super.paintComponent(g);
+			metrics.recordPaint();
+		}
+		
+	}
+	
+	
 	/**
 	 * A JPanel with rounded corners.
 	 */
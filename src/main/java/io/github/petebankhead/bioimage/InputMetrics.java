@@ -0,0 +1,116 @@
+package io.github.petebankhead.bioimage;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latencies for the keypress display, available through JMX as {@link InputMetricsMBean}.
+ * <p>
+ * Changes to the keys shown are counted when they are requested, and again when the display is next painted.
+ * If several changes happen before a paint, all but the last are counted as coalesced, and the latency is measured
+ * from the earliest key event that hadn't yet been painted.
+ * Apart from the counters, this should only be used from the Event Dispatch Thread.
+ *
+ * @author Pete Bankhead
+ */
+class InputMetrics implements InputMetricsMBean {
+
+	private static final InputMetrics instance = new InputMetrics();
+
+	private static final AtomicBoolean registered = new AtomicBoolean(false);
+
+	private final LongAdder eventsProcessed = new LongAdder();
+	private final LongAdder updatesRendered = new LongAdder();
+	private final LongAdder updatesCoalesced = new LongAdder();
+
+	private final LatencyHistogram keyToPaint = new LatencyHistogram();
+
+	/**
+	 * Number of updates since the last paint, and the time of the earliest key event among them
+	 */
+	private int pendingUpdates = 0;
+	private long pendingSinceMillis;
+
+	private InputMetrics() {}
+
+	/**
+	 * Get the shared metrics, registering them with JMX the first time this is called.
+	 */
+	static InputMetrics get() {
+		if (!registered.get() && registered.compareAndSet(false, true))
+			JmxSupport.register("InputDisplay", instance, InputMetricsMBean.class);
+		return instance;
+	}
+
+	void recordEvent() {
+		eventsProcessed.increment();
+	}
+
+	/**
+	 * Record that the keys shown have changed, and the display needs to be painted.
+	 * @param eventMillis time of the key event that caused the change, as given by {@link java.awt.event.InputEvent#getWhen()}
+	 */
+	void recordUpdate(long eventMillis) {
+		if (pendingUpdates == 0)
+			pendingSinceMillis = eventMillis;
+		pendingUpdates++;
+	}
+
+	/**
+	 * Record that the display has been painted.
+	 */
+	void recordPaint() {
+		if (pendingUpdates == 0)
+			return;
+		updatesRendered.increment();
+		if (pendingUpdates > 1)
+			updatesCoalesced.add(pendingUpdates - 1);
+		// Event times only have millisecond resolution
+		keyToPaint.record(Math.max(0, System.currentTimeMillis() - pendingSinceMillis) * 1_000_000L);
+		pendingUpdates = 0;
+	}
+
+	@Override
+	public long getEventsProcessed() {
+		return eventsProcessed.sum();
+	}
+
+	@Override
+	public long getUpdatesRendered() {
+		return updatesRendered.sum();
+	}
+
+	@Override
+	public long getUpdatesCoalesced() {
+		return updatesCoalesced.sum();
+	}
+
+	@Override
+	public double getKeyToPaintMillisP50() {
+		return keyToPaint.getPercentileMillis(50);
+	}
+
+	@Override
+	public double getKeyToPaintMillisP95() {
+		return keyToPaint.getPercentileMillis(95);
+	}
+
+	@Override
+	public double getKeyToPaintMillisP99() {
+		return keyToPaint.getPercentileMillis(99);
+	}
+
+	@Override
+	public double getKeyToPaintMillisMax() {
+		return keyToPaint.getMaxMillis();
+	}
+
+	@Override
+	public void reset() {
+		eventsProcessed.reset();
+		updatesRendered.reset();
+		updatesCoalesced.reset();
+		keyToPaint.reset();
+	}
+
+}
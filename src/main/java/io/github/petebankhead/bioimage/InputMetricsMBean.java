@@ -0,0 +1,41 @@
+package io.github.petebankhead.bioimage;
+
+/**
+ * Management interface for monitoring the keypress display, e.g. from JConsole or VisualVM.
+ * <p>
+ * Latencies are in milliseconds, and counts are since the plugin was loaded (or metrics were last reset).
+ * This interface needs to be public for JMX, but isn't intended to be used directly.
+ *
+ * @author Pete Bankhead
+ */
+public interface InputMetricsMBean {
+
+	/**
+	 * Number of key events handled.
+	 */
+	long getEventsProcessed();
+
+	/**
+	 * Number of times the display was painted after the keys shown had changed.
+	 */
+	long getUpdatesRendered();
+
+	/**
+	 * Number of changes to the keys shown that were merged into a later paint, and so never appeared on screen.
+	 */
+	long getUpdatesCoalesced();
+
+	/**
+	 * Time from a key event being generated until the display showing it was painted.
+	 */
+	double getKeyToPaintMillisP50();
+	double getKeyToPaintMillisP95();
+	double getKeyToPaintMillisP99();
+	double getKeyToPaintMillisMax();
+
+	/**
+	 * Clear all counts and latencies.
+	 */
+	void reset();
+
+}
@@ -0,0 +1,42 @@
+package io.github.petebankhead.bioimage;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import ij.IJ;
+
+/**
+ * Helper to make metrics available through JMX, so they can be monitored with JConsole or VisualVM.
+ *
+ * @author Pete Bankhead
+ */
+class JmxSupport {
+
+	private static final String DOMAIN = "io.github.petebankhead.bioimage";
+
+	private JmxSupport() {}
+
+	/**
+	 * Register an MBean with the platform MBean server.
+	 * Any MBean previously registered with the same type (e.g. by an earlier copy of the plugin) is replaced.
+	 * @param type the type, used to create the object name
+	 * @param implementation the object providing the metrics, which needn't be public
+	 * @param mbeanInterface the public management interface
+	 */
+	static <T> void register(String type, T implementation, Class<T> mbeanInterface) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(DOMAIN + ":type=" + type);
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+			server.registerMBean(new StandardMBean(implementation, mbeanInterface), name);
+		} catch (JMException | SecurityException e) {
+			IJ.log("Unable to register " + type + " metrics: " + e.getLocalizedMessage());
+		}
+	}
+
+}
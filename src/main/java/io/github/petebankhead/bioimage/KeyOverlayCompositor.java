@@ -0,0 +1,130 @@
+package io.github.petebankhead.bioimage;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+import io.github.petebankhead.bioimage.InputDisplayPlugin.KeyState;
+
+/**
+ * Draw the current keypresses directly onto a captured image.
+ * <p>
+ * The key state is read from the running keypress display (see {@link InputDisplayPlugin}) without locking,
+ * so this can be applied to every frame of a recording and always matches the keys pressed when the frame was captured.
+ * If no keys are held, the most recent chord is shown for a short time after it was pressed,
+ * so that quick shortcuts still appear.
+ *
+ * @author Pete Bankhead
+ */
+class KeyOverlayCompositor {
+
+	/**
+	 * Position of the keypress label within the image.
+	 */
+	static enum Anchor {
+		TOP_LEFT, TOP_CENTER, TOP_RIGHT, BOTTOM_LEFT, BOTTOM_CENTER, BOTTOM_RIGHT
+	}
+
+	private static final Color BACKGROUND = new Color(0, 0, 0, 200);
+
+	private final Anchor anchor;
+	private final Font font;
+	private final Font commandFont;
+	private final int margin;
+	private final long lingerMillis;
+
+	/**
+	 * Create a compositor.
+	 * @param anchor position of the label
+	 * @param fontSize font size for the keys; commands are shown smaller
+	 * @param lingerMillis time for which the most recent chord is shown after its keys have been released
+	 */
+	KeyOverlayCompositor(Anchor anchor, float fontSize, long lingerMillis) {
+		this.anchor = anchor;
+		this.font = new Font(Font.SANS_SERIF, Font.PLAIN, 1).deriveFont(fontSize);
+		this.commandFont = font.deriveFont(fontSize * 0.6f);
+		this.margin = Math.round(fontSize / 2);
+		this.lingerMillis = lingerMillis;
+	}
+
+	/**
+	 * Draw the current keypresses onto an image, if there are any to show.
+	 * @param img the image to modify
+	 * @return true if anything was drawn, false otherwise
+	 */
+	boolean paint(BufferedImage img) {
+		KeyState state = InputDisplayPlugin.getActiveKeyState();
+		if (state == null)
+			return false;
+
+		String text = state.getKeys();
+		String command = state.getCommand();
+		if (text.isEmpty()) {
+			command = null;
+			if (state.getLastChord() == null || System.currentTimeMillis() - state.getLastChordMillis() > lingerMillis)
+				return false;
+			text = state.getLastChord();
+		}
+
+		Graphics2D g2d = img.createGraphics();
+		try {
+			g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+			FontMetrics metrics = g2d.getFontMetrics(font);
+			FontMetrics commandMetrics = command == null ? null : g2d.getFontMetrics(commandFont);
+
+			int textWidth = metrics.stringWidth(text);
+			int textHeight = metrics.getHeight();
+			if (commandMetrics != null) {
+				textWidth = Math.max(textWidth, commandMetrics.stringWidth(command));
+				textHeight += commandMetrics.getHeight();
+			}
+			int width = textWidth + margin * 2;
+			int height = textHeight + margin;
+
+			int x, y;
+			switch (anchor) {
+			case TOP_LEFT:
+			case BOTTOM_LEFT:
+				x = margin;
+				break;
+			case TOP_RIGHT:
+			case BOTTOM_RIGHT:
+				x = img.getWidth() - width - margin;
+				break;
+			default:
+				x = (img.getWidth() - width) / 2;
+			}
+			switch (anchor) {
+			case TOP_LEFT:
+			case TOP_CENTER:
+			case TOP_RIGHT:
+				y = margin;
+				break;
+			default:
+				y = img.getHeight() - height - margin;
+			}
+
+			g2d.setColor(BACKGROUND);
+			g2d.fillRoundRect(x, y, width, height, margin * 2, margin * 2);
+
+			int baseline = y + margin / 2 + metrics.getAscent();
+			g2d.setFont(font);
+			g2d.setColor(Color.WHITE);
+			g2d.drawString(text, x + (width - metrics.stringWidth(text)) / 2, baseline);
+			if (commandMetrics != null) {
+				baseline += metrics.getDescent() + commandMetrics.getAscent();
+				g2d.setFont(commandFont);
+				g2d.setColor(Color.LIGHT_GRAY);
+				g2d.drawString(command, x + (width - commandMetrics.stringWidth(command)) / 2, baseline);
+			}
+		} finally {
+			g2d.dispose();
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,116 @@
+package io.github.petebankhead.bioimage;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Record latencies from any number of threads, and estimate their percentiles.
+ * <p>
+ * Values are counted in buckets that grow exponentially in size (four per power of two, from 1 microsecond),
+ * so that recording is just an increment of a {@link LongAdder} and never contends with other threads.
+ * Percentiles are therefore approximate, but within about 12% of the true value.
+ *
+ * @author Pete Bankhead
+ */
+class LatencyHistogram {
+
+	/**
+	 * Number of buckets per power of two, as a power of two.
+	 */
+	private static final int SUB_BUCKET_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * Enough buckets for latencies up to about a day.
+	 */
+	private static final int N_BUCKETS = SUB_BUCKETS * 38;
+
+	private final LongAdder[] buckets = new LongAdder[N_BUCKETS];
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	LatencyHistogram() {
+		for (int i = 0; i < buckets.length; i++)
+			buckets[i] = new LongAdder();
+	}
+
+	/**
+	 * Record a latency.
+	 * @param nanos the latency, in nanoseconds
+	 */
+	void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		buckets[getBucket(micros)].increment();
+		max.accumulate(micros);
+	}
+
+	/**
+	 * Get the number of latencies recorded.
+	 */
+	long getCount() {
+		long count = 0;
+		for (LongAdder bucket : buckets)
+			count += bucket.sum();
+		return count;
+	}
+
+	/**
+	 * Get the largest latency recorded, in milliseconds.
+	 */
+	double getMaxMillis() {
+		return max.get() / 1000.0;
+	}
+
+	/**
+	 * Estimate a percentile of the latencies recorded.
+	 * @param percentile the percentile, between 0 and 100
+	 * @return the estimated latency in milliseconds, or 0 if nothing has been recorded
+	 */
+	double getPercentileMillis(double percentile) {
+		// Take a snapshot, since values may be recorded while we're counting
+		long[] counts = new long[buckets.length];
+		long total = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			counts[i] = buckets[i].sum();
+			total += counts[i];
+		}
+		if (total == 0)
+			return 0;
+		long target = Math.max(1, (long)Math.ceil(total * percentile / 100.0));
+		long cumulative = 0;
+		for (int i = 0; i < counts.length; i++) {
+			cumulative += counts[i];
+			if (cumulative >= target) {
+				// Use the middle of the bucket, but don't exceed the largest value seen
+				double micros = (getBucketStart(i) + getBucketStart(i + 1)) / 2.0;
+				return Math.min(micros, max.get()) / 1000.0;
+			}
+		}
+		return getMaxMillis();
+	}
+
+	/**
+	 * Clear all recorded latencies.
+	 */
+	void reset() {
+		for (LongAdder bucket : buckets)
+			bucket.reset();
+		max.reset();
+	}
+
+	private static int getBucket(long micros) {
+		if (micros < SUB_BUCKETS)
+			return (int)micros;
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int subBucket = (int)(micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return Math.min(N_BUCKETS - 1, (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket);
+	}
+
+	private static long getBucketStart(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int subBucket = bucket % SUB_BUCKETS;
+		return (1L << exponent) + ((long)subBucket << (exponent - SUB_BUCKET_BITS));
+	}
+
+}
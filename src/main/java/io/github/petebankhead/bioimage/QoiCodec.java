@@ -0,0 +1,261 @@
+package io.github.petebankhead.bioimage;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+/**
+ * Write and read images in the QOI ('Quite OK Image') format.
+ * <p>
+ * QOI is lossless like PNG, but typically many times faster to encode, at the cost of larger files.
+ * This makes it useful for capturing many screenshots quickly, which can be converted to PNG later
+ * (see {@link QoiConverter}).
+ * <p>
+ * Encoding works directly on the packed int pixels of TYPE_INT_RGB and TYPE_INT_ARGB images, and an encoder
+ * reuses its buffers - so writing an image doesn't allocate anything. An encoder shouldn't be used by
+ * more than one thread at a time.
+ * <p>
+ * See https://qoiformat.org for the specification.
+ *
+ * @author Pete Bankhead
+ */
+class QoiCodec {
+
+	private static final int MAGIC = ('q' << 24) | ('o' << 16) | ('i' << 8) | 'f';
+
+	private static final int HEADER_SIZE = 14;
+
+	private static final int OP_INDEX = 0x00;
+	private static final int OP_DIFF = 0x40;
+	private static final int OP_LUMA = 0x80;
+	private static final int OP_RUN = 0xc0;
+	private static final int OP_RGB = 0xfe;
+	private static final int OP_RGBA = 0xff;
+	private static final int MASK_2 = 0xc0;
+
+	private static final int MAX_RUN = 62;
+
+	private static final byte[] END_MARKER = {0, 0, 0, 0, 0, 0, 0, 1};
+
+	/**
+	 * Maximum number of bytes needed to encode a single pixel
+	 */
+	private static final int MAX_PIXEL_BYTES = 5;
+
+	private final int[] index = new int[64];
+	private final byte[] buffer = new byte[64 * 1024];
+	private int pos = 0;
+
+	/**
+	 * Encode an image to a stream.
+	 * Images with an alpha channel are written with 4 channels; others with 3.
+	 * @param img the image
+	 * @param stream the output stream, which is not closed
+	 * @throws IOException
+	 */
+	void write(BufferedImage img, OutputStream stream) throws IOException {
+		if (!hasPackedPixels(img))
+			img = toPackedPixels(img);
+		WritableRaster raster = img.getRaster();
+		SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel)raster.getSampleModel();
+		int[] data = ((DataBufferInt)raster.getDataBuffer()).getData();
+		int stride = model.getScanlineStride();
+		int offset = raster.getDataBuffer().getOffset() +
+				model.getOffset(-raster.getSampleModelTranslateX(), -raster.getSampleModelTranslateY());
+		int width = img.getWidth();
+		int height = img.getHeight();
+		boolean hasAlpha = img.getColorModel().hasAlpha();
+		// Opaque images may have anything in the top byte, so we need to replace it
+		int alphaMask = hasAlpha ? 0 : 0xff000000;
+
+		pos = 0;
+		putInt(MAGIC);
+		putInt(width);
+		putInt(height);
+		buffer[pos++] = (byte)(hasAlpha ? 4 : 3);
+		buffer[pos++] = 0; // sRGB with linear alpha
+
+		for (int i = 0; i < index.length; i++)
+			index[i] = 0;
+		int prev = 0xff000000;
+		int run = 0;
+		for (int y = 0; y < height; y++) {
+			int rowStart = offset + y * stride;
+			for (int x = 0; x < width; x++) {
+				int px = data[rowStart + x] | alphaMask;
+				if (px == prev) {
+					run++;
+					if (run == MAX_RUN) {
+						if (pos > buffer.length - 2)
+							flush(stream);
+						buffer[pos++] = (byte)(OP_RUN | (run - 1));
+						run = 0;
+					}
+					continue;
+				}
+				if (pos > buffer.length - MAX_PIXEL_BYTES - 1)
+					flush(stream);
+				if (run > 0) {
+					buffer[pos++] = (byte)(OP_RUN | (run - 1));
+					run = 0;
+				}
+				int hash = hash(px);
+				if (index[hash] == px) {
+					buffer[pos++] = (byte)(OP_INDEX | hash);
+				} else {
+					index[hash] = px;
+					if ((px >>> 24) == (prev >>> 24)) {
+						int vr = (byte)((px >> 16) - (prev >> 16));
+						int vg = (byte)((px >> 8) - (prev >> 8));
+						int vb = (byte)(px - prev);
+						int vgr = vr - vg;
+						int vgb = vb - vg;
+						if (vr > -3 && vr < 2 && vg > -3 && vg < 2 && vb > -3 && vb < 2) {
+							buffer[pos++] = (byte)(OP_DIFF | (vr + 2) << 4 | (vg + 2) << 2 | (vb + 2));
+						} else if (vgr > -9 && vgr < 8 && vg > -33 && vg < 32 && vgb > -9 && vgb < 8) {
+							buffer[pos++] = (byte)(OP_LUMA | (vg + 32));
+							buffer[pos++] = (byte)((vgr + 8) << 4 | (vgb + 8));
+						} else {
+							buffer[pos++] = (byte)OP_RGB;
+							buffer[pos++] = (byte)(px >> 16);
+							buffer[pos++] = (byte)(px >> 8);
+							buffer[pos++] = (byte)px;
+						}
+					} else {
+						buffer[pos++] = (byte)OP_RGBA;
+						buffer[pos++] = (byte)(px >> 16);
+						buffer[pos++] = (byte)(px >> 8);
+						buffer[pos++] = (byte)px;
+						buffer[pos++] = (byte)(px >>> 24);
+					}
+				}
+				prev = px;
+			}
+		}
+		if (pos > buffer.length - END_MARKER.length - 1)
+			flush(stream);
+		if (run > 0)
+			buffer[pos++] = (byte)(OP_RUN | (run - 1));
+		System.arraycopy(END_MARKER, 0, buffer, pos, END_MARKER.length);
+		pos += END_MARKER.length;
+		flush(stream);
+	}
+
+	private void putInt(int value) {
+		buffer[pos++] = (byte)(value >>> 24);
+		buffer[pos++] = (byte)(value >>> 16);
+		buffer[pos++] = (byte)(value >>> 8);
+		buffer[pos++] = (byte)value;
+	}
+
+	private void flush(OutputStream stream) throws IOException {
+		stream.write(buffer, 0, pos);
+		pos = 0;
+	}
+
+	private static int hash(int px) {
+		int r = (px >> 16) & 0xff;
+		int g = (px >> 8) & 0xff;
+		int b = px & 0xff;
+		int a = px >>> 24;
+		return (r * 3 + g * 5 + b * 7 + a * 11) & 63;
+	}
+
+	/**
+	 * Read a QOI image.
+	 * @param file
+	 * @return a TYPE_INT_ARGB image if the file has 4 channels, or TYPE_INT_RGB otherwise
+	 * @throws IOException if the file can't be read, or isn't a valid QOI image
+	 */
+	static BufferedImage read(File file) throws IOException {
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		if (bytes.length < HEADER_SIZE + END_MARKER.length || getInt(bytes, 0) != MAGIC)
+			throw new IOException(file.getName() + " is not a QOI image");
+		int width = getInt(bytes, 4);
+		int height = getInt(bytes, 8);
+		int channels = bytes[12];
+		if (width <= 0 || height <= 0 || (long)width * height > Integer.MAX_VALUE || (channels != 3 && channels != 4))
+			throw new IOException("Invalid QOI header for " + file.getName());
+
+		BufferedImage img = new BufferedImage(width, height, channels == 4 ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+		int[] pixels = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+		try {
+			decode(bytes, HEADER_SIZE, bytes.length - END_MARKER.length, pixels);
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Invalid QOI data in " + file.getName(), e);
+		}
+		return img;
+	}
+
+	/**
+	 * Decode QOI data from bytes, starting at position p and ending before end, into packed ARGB pixels.
+	 */
+	private static void decode(byte[] bytes, int p, int end, int[] pixels) throws IOException {
+		int[] index = new int[64];
+		int px = 0xff000000;
+		int run = 0;
+		for (int i = 0; i < pixels.length; i++) {
+			if (run > 0) {
+				run--;
+			} else if (p < end) {
+				int b1 = bytes[p++] & 0xff;
+				if (b1 == OP_RGB) {
+					px = (px & 0xff000000) | (bytes[p] & 0xff) << 16 | (bytes[p+1] & 0xff) << 8 | (bytes[p+2] & 0xff);
+					p += 3;
+				} else if (b1 == OP_RGBA) {
+					px = (bytes[p+3] & 0xff) << 24 | (bytes[p] & 0xff) << 16 | (bytes[p+1] & 0xff) << 8 | (bytes[p+2] & 0xff);
+					p += 4;
+				} else if ((b1 & MASK_2) == OP_INDEX) {
+					px = index[b1];
+				} else if ((b1 & MASK_2) == OP_DIFF) {
+					int r = ((px >> 16) + ((b1 >> 4) & 0x03) - 2) & 0xff;
+					int g = ((px >> 8) + ((b1 >> 2) & 0x03) - 2) & 0xff;
+					int b = (px + (b1 & 0x03) - 2) & 0xff;
+					px = (px & 0xff000000) | r << 16 | g << 8 | b;
+				} else if ((b1 & MASK_2) == OP_LUMA) {
+					int b2 = bytes[p++] & 0xff;
+					int vg = (b1 & 0x3f) - 32;
+					int r = ((px >> 16) + vg - 8 + ((b2 >> 4) & 0x0f)) & 0xff;
+					int g = ((px >> 8) + vg) & 0xff;
+					int b = (px + vg - 8 + (b2 & 0x0f)) & 0xff;
+					px = (px & 0xff000000) | r << 16 | g << 8 | b;
+				} else {
+					run = b1 & 0x3f;
+				}
+				index[hash(px)] = px;
+			} else
+				throw new IOException("Unexpected end of QOI data");
+			pixels[i] = px;
+		}
+	}
+
+	private static int getInt(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xff) << 24 | (bytes[offset+1] & 0xff) << 16 | (bytes[offset+2] & 0xff) << 8 | (bytes[offset+3] & 0xff);
+	}
+
+	/**
+	 * Check if an image stores each pixel as a single int in 0xAARRGGBB or 0x00RRGGBB form.
+	 */
+	private static boolean hasPackedPixels(BufferedImage img) {
+		int type = img.getType();
+		return (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) &&
+				img.getRaster().getDataBuffer() instanceof DataBufferInt &&
+				img.getRaster().getSampleModel() instanceof SinglePixelPackedSampleModel;
+	}
+
+	private static BufferedImage toPackedPixels(BufferedImage img) {
+		int type = img.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+		BufferedImage imgPacked = new BufferedImage(img.getWidth(), img.getHeight(), type);
+		Graphics2D g2d = imgPacked.createGraphics();
+		g2d.drawImage(img, 0, 0, null);
+		g2d.dispose();
+		return imgPacked;
+	}
+
+}
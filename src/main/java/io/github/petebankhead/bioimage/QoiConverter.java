@@ -0,0 +1,117 @@
+package io.github.petebankhead.bioimage;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import ij.IJ;
+
+/**
+ * Convert QOI screenshots to PNG in the background, using all available processors.
+ * <p>
+ * This makes it possible to capture quickly as QOI (see {@link QoiCodec}), and then get smaller PNG files later.
+ * Each QOI file in a directory (including subdirectories) is written as a PNG with the same name, using the
+ * strongest compression available, and deleted once the PNG has been written successfully.
+ * Files that already have a corresponding PNG are skipped, as are hidden and temporary files (which may still be
+ * being written by a capture).
+ *
+ * @author Pete Bankhead
+ */
+class QoiConverter {
+
+	private QoiConverter() {}
+
+	/**
+	 * Start converting all QOI files in a directory, returning immediately.
+	 * Progress is shown in the status bar, and a summary is logged when the conversion is complete.
+	 * @param dir
+	 */
+	static void convertInBackground(File dir) {
+		Thread thread = new Thread(() -> convert(dir), "bioimage-qoi-converter");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Convert all QOI files in a directory, waiting until all are complete.
+	 * @param dir
+	 * @return the number of files converted
+	 */
+	static int convert(File dir) {
+		List<Path> paths;
+		try (Stream<Path> stream = Files.walk(dir.toPath())) {
+			paths = stream
+					.filter(p -> isConvertible(p.getFileName().toString()))
+					.filter(Files::isRegularFile)
+					.collect(Collectors.toList());
+		} catch (IOException e) {
+			IJ.log("Unable to list QOI files in " + dir + ": " + e.getLocalizedMessage());
+			return 0;
+		}
+		if (paths.isEmpty()) {
+			IJ.log("No QOI files found in " + dir);
+			return 0;
+		}
+
+		AtomicInteger nConverted = new AtomicInteger();
+		AtomicInteger nSkipped = new AtomicInteger();
+		AtomicInteger nFailed = new AtomicInteger();
+		AtomicInteger nDone = new AtomicInteger();
+		long startTime = System.currentTimeMillis();
+		// Use a separate pool, so we don't hold up anything else using the common pool
+		ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		try {
+			pool.submit(() -> paths.parallelStream().forEach(path -> {
+				File fileQoi = path.toFile();
+				String name = fileQoi.getName();
+				File filePng = new File(fileQoi.getParentFile(), name.substring(0, name.length() - 4) + ".png");
+				try {
+					if (filePng.exists()) {
+						nSkipped.incrementAndGet();
+					} else {
+						BufferedImage img = QoiCodec.read(fileQoi);
+						CaptureWindowsPlugin.writeCompressedPNG(img, filePng);
+						Files.delete(path);
+						nConverted.incrementAndGet();
+					}
+				} catch (IOException e) {
+					IJ.log("Unable to convert " + fileQoi + ": " + e.getLocalizedMessage());
+					nFailed.incrementAndGet();
+				}
+				int done = nDone.incrementAndGet();
+				IJ.showStatus("Converting QOI to PNG (" + done + "/" + paths.size() + ")");
+			})).get();
+		} catch (Exception e) {
+			IJ.log("QOI conversion failed: " + e.getLocalizedMessage());
+		} finally {
+			pool.shutdown();
+		}
+
+		String message = "Converted " + nConverted.get() + " QOI files to PNG in " +
+				String.format("%.1f", (System.currentTimeMillis() - startTime) / 1000.0) + " s";
+		if (nSkipped.get() > 0)
+			message += " (" + nSkipped.get() + " skipped - PNG already exists)";
+		if (nFailed.get() > 0)
+			message += " (" + nFailed.get() + " failed)";
+		IJ.showStatus(message);
+		IJ.log(message);
+		return nConverted.get();
+	}
+
+	/**
+	 * Check if a file name is a complete QOI image.
+	 * Hidden files and temporary files are skipped, since they may still be being written (see {@link AtomicFileWriter}).
+	 */
+	static boolean isConvertible(String name) {
+		String lower = name.toLowerCase();
+		return lower.endsWith(".qoi") && !lower.startsWith(".") && !lower.contains(".tmp.");
+	}
+
+}
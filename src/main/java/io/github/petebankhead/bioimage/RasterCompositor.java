@@ -0,0 +1,246 @@
+package io.github.petebankhead.bioimage;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Combine opaque images (e.g. window captures) into a single canvas by copying pixels directly between int arrays.
+ * <p>
+ * This avoids the general Java2D drawing loops, which are relatively slow when converting between image types.
+ * Rows are copied with {@link System#arraycopy(Object, int, Object, int, int)} for an RGB canvas, or with the alpha set
+ * in the same pass for an ARGB canvas (where anything not covered by an image remains transparent).
+ * <p>
+ * Images are added from the top down, and each is copied onto the canvas immediately - skipping any parts hidden
+ * by images added earlier. So each pixel of the canvas is written at most once, however much the windows overlap,
+ * and only the bounds of earlier images need to be kept (not their pixels).
+ * Large images are split into bands of rows that are copied in parallel.
+ *
+ * @author Pete Bankhead
+ */
+class RasterCompositor {
+
+	/**
+	 * Approximate number of pixels below which a band isn't split further.
+	 */
+	private static final int BAND_PIXELS = 64 * 1024;
+
+	private final Rectangle bounds;
+	private final boolean transparent;
+	private final BufferedImage canvas;
+	private final int[] pixels;
+
+	/**
+	 * Regions covered by images already added, relative to the canvas.
+	 */
+	private final List<Rectangle> covered = new ArrayList<>();
+
+	/**
+	 * Create a compositor.
+	 * @param bounds region covered by the canvas, in the same coordinates used to add images (e.g. screen coordinates)
+	 * @param transparent if true, create an ARGB canvas with a transparent background; otherwise an RGB canvas with a black background
+	 */
+	RasterCompositor(Rectangle bounds, boolean transparent) {
+		if (bounds.isEmpty())
+			throw new IllegalArgumentException("Canvas bounds must not be empty, but were " + bounds);
+		this.bounds = new Rectangle(bounds);
+		this.transparent = transparent;
+		this.canvas = new BufferedImage(bounds.width, bounds.height,
+				transparent ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+		this.pixels = ((DataBufferInt)canvas.getRaster().getDataBuffer()).getData();
+	}
+
+	/**
+	 * Add an image underneath any previously added, copying the parts that are still visible onto the canvas.
+	 * The image isn't referenced afterwards, so can be discarded as soon as this returns.
+	 * Any alpha channel is ignored.
+	 * @param img the image
+	 * @param x x-coordinate of the top left of the image
+	 * @param y y-coordinate of the top left of the image
+	 */
+	void addBelow(BufferedImage img, int x, int y) {
+		Rectangle region = new Rectangle(x - bounds.x, y - bounds.y, img.getWidth(), img.getHeight());
+		Rectangle visible = region.intersection(new Rectangle(0, 0, bounds.width, bounds.height));
+		if (visible.isEmpty())
+			return;
+		// Only images that overlap this one can hide any of it
+		List<Rectangle> above = new ArrayList<>();
+		for (Rectangle r : covered) {
+			if (r.intersects(visible))
+				above.add(r);
+		}
+		covered.add(visible);
+		if (above.size() == 1 && above.get(0).contains(visible))
+			return;
+
+		Layer layer = new Layer(img, region.x, region.y);
+		BandTask task = new BandTask(layer, above.toArray(new Rectangle[0]), visible.x, visible.x + visible.width,
+				visible.y, visible.y + visible.height);
+		// Forking only adds overhead if there's nothing to run the bands in parallel
+		if ((long)visible.width * visible.height <= BAND_PIXELS || ForkJoinPool.getCommonPoolParallelism() < 2)
+			task.compute();
+		else
+			ForkJoinPool.commonPool().invoke(task);
+	}
+
+	/**
+	 * Get the canvas containing all the images added so far.
+	 * @return a TYPE_INT_ARGB or TYPE_INT_RGB image, depending upon whether transparency was requested
+	 */
+	BufferedImage getImage() {
+		return canvas;
+	}
+
+	/**
+	 * Copy rows of an image onto the canvas, skipping any pixels covered by images above it.
+	 */
+	private void fillBand(Layer layer, Rectangle[] above, int x0, int x1, int yStart, int yEnd) {
+		int width = bounds.width;
+		// Spans of the current row covered by higher images, sorted and non-overlapping
+		int[] spanStarts = new int[above.length + 1];
+		int[] spanEnds = new int[above.length + 1];
+		for (int y = yStart; y < yEnd; y++) {
+			int nSpans = 0;
+			for (Rectangle r : above) {
+				if (y >= r.y && y < r.y + r.height)
+					nSpans = addSpan(spanStarts, spanEnds, nSpans, Math.max(x0, r.x), Math.min(x1, r.x + r.width));
+			}
+			int dest = y * width;
+			int src = layer.offset + (y - layer.y) * layer.stride - layer.x;
+			// Copy only the parts of the row that aren't already covered
+			int x = x0;
+			for (int s = 0; s < nSpans && x < x1; s++) {
+				if (spanEnds[s] <= x)
+					continue;
+				if (spanStarts[s] >= x1)
+					break;
+				if (spanStarts[s] > x)
+					copyRow(layer.data, src, dest, x, spanStarts[s]);
+				x = Math.max(x, spanEnds[s]);
+			}
+			if (x < x1)
+				copyRow(layer.data, src, dest, x, x1);
+		}
+	}
+
+	/**
+	 * Copy pixels with x-coordinates from x0 (inclusive) to x1 (exclusive).
+	 */
+	private void copyRow(int[] data, int src, int dest, int x0, int x1) {
+		if (transparent) {
+			int offset = src - dest;
+			for (int i = dest + x0, end = dest + x1; i < end; i++)
+				pixels[i] = data[i + offset] | 0xff000000;
+		} else
+			System.arraycopy(data, src + x0, pixels, dest + x0, x1 - x0);
+	}
+
+	/**
+	 * Add a span to a sorted list of non-overlapping spans, merging any it overlaps or touches.
+	 * @return the new number of spans
+	 */
+	private static int addSpan(int[] starts, int[] ends, int n, int x0, int x1) {
+		int i = 0;
+		while (i < n && ends[i] < x0)
+			i++;
+		int j = i;
+		while (j < n && starts[j] <= x1) {
+			x0 = Math.min(x0, starts[j]);
+			x1 = Math.max(x1, ends[j]);
+			j++;
+		}
+		int removed = j - i;
+		if (removed != 1) {
+			System.arraycopy(starts, j, starts, i + 1, n - j);
+			System.arraycopy(ends, j, ends, i + 1, n - j);
+		}
+		starts[i] = x0;
+		ends[i] = x1;
+		return n - removed + 1;
+	}
+
+
+	private class BandTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Layer layer;
+		private final Rectangle[] above;
+		private final int x0;
+		private final int x1;
+		private final int yStart;
+		private final int yEnd;
+
+		BandTask(Layer layer, Rectangle[] above, int x0, int x1, int yStart, int yEnd) {
+			this.layer = layer;
+			this.above = above;
+			this.x0 = x0;
+			this.x1 = x1;
+			this.yStart = yStart;
+			this.yEnd = yEnd;
+		}
+
+		@Override
+		protected void compute() {
+			int rows = yEnd - yStart;
+			if (rows < 2 || (long)rows * (x1 - x0) <= BAND_PIXELS) {
+				fillBand(layer, above, x0, x1, yStart, yEnd);
+				return;
+			}
+			int yMid = yStart + rows / 2;
+			invokeAll(new BandTask(layer, above, x0, x1, yStart, yMid), new BandTask(layer, above, x0, x1, yMid, yEnd));
+		}
+
+	}
+
+
+	/**
+	 * Direct access to the packed pixels of an image.
+	 */
+	private static class Layer {
+
+		private final int[] data;
+		private final int offset;
+		private final int stride;
+		private final int x;
+		private final int y;
+
+		Layer(BufferedImage img, int x, int y) {
+			if (!hasPackedPixels(img)) {
+				// Convert anything unusual once, rather than per pixel
+				BufferedImage imgRGB = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
+				Graphics2D g2d = imgRGB.createGraphics();
+				g2d.drawImage(img, 0, 0, null);
+				g2d.dispose();
+				img = imgRGB;
+			}
+			WritableRaster raster = img.getRaster();
+			SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel)raster.getSampleModel();
+			this.data = ((DataBufferInt)raster.getDataBuffer()).getData();
+			this.stride = model.getScanlineStride();
+			this.offset = raster.getDataBuffer().getOffset() +
+					model.getOffset(-raster.getSampleModelTranslateX(), -raster.getSampleModelTranslateY());
+			this.x = x;
+			this.y = y;
+		}
+
+		/**
+		 * Check if an image stores each pixel as a single int in 0xAARRGGBB or 0x00RRGGBB form.
+		 */
+		private static boolean hasPackedPixels(BufferedImage img) {
+			int type = img.getType();
+			return (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) &&
+					img.getRaster().getDataBuffer() instanceof DataBufferInt &&
+					img.getRaster().getSampleModel() instanceof SinglePixelPackedSampleModel;
+		}
+
+	}
+
+}
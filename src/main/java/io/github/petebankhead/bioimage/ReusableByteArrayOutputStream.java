@@ -0,0 +1,50 @@
+package io.github.petebankhead.bioimage;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * ByteArrayOutputStream that gives access to its buffer, so that it can be reused without copying.
+ *
+ * @author Pete Bankhead
+ */
+class ReusableByteArrayOutputStream extends OutputStream {
+
+	private byte[] buffer;
+	private int size = 0;
+
+	ReusableByteArrayOutputStream(int capacity) {
+		buffer = new byte[Math.max(capacity, 1024)];
+	}
+
+	@Override
+	public void write(int b) {
+		ensureCapacity(size + 1);
+		buffer[size++] = (byte)b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity(size + len);
+		System.arraycopy(b, off, buffer, size, len);
+		size += len;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > buffer.length)
+			buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+	}
+
+	void reset() {
+		size = 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	byte[] getBuffer() {
+		return buffer;
+	}
+
+}
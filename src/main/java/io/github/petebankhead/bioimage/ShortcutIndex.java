@@ -0,0 +1,292 @@
+package io.github.petebankhead.bioimage;
+
+import java.awt.Menu;
+import java.awt.MenuBar;
+import java.awt.MenuItem;
+import java.awt.MenuShortcut;
+import java.awt.Toolkit;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Map;
+
+import ij.IJ;
+import ij.Menus;
+
+/**
+ * Index to look up the ImageJ command triggered by a key combination.
+ * <p>
+ * Keys are packed into a single int containing the keycode and a compact modifier mask,
+ * so that a lookup on the key event path is a couple of array reads without any boxing or string handling.
+ * <p>
+ * ImageJ stores shortcuts in three places: the menu bar accelerators (used with the platform's menu shortcut key),
+ * the table of single-key shortcuts and the table of macro shortcuts.
+ * Each is indexed separately, so that when one of them changes only that part needs to be rebuilt.
+ *
+ * @author Pete Bankhead
+ */
+class ShortcutIndex {
+
+	static final int SHIFT = 1;
+	static final int CTRL = 1 << 1;
+	static final int ALT = 1 << 2;
+	static final int META = 1 << 3;
+
+	/**
+	 * ImageJ's shortcut tables distinguish shifted keys by adding this to the keycode.
+	 */
+	private static final int SHIFT_OFFSET = 200;
+
+	/**
+	 * Minimum interval between checking the contents of the shortcut tables, rather than only their identities and sizes.
+	 */
+	private static final long CONTENT_CHECK_MILLIS = 2000;
+
+	private final IntStringMap menuShortcuts = new IntStringMap();
+	private final IntStringMap keyShortcuts = new IntStringMap();
+	private final IntStringMap macroShortcuts = new IntStringMap();
+
+	private final int menuShortcutModifier;
+
+	// Fingerprints used to detect when the ImageJ menus have changed
+	private Object lastMenuBar;
+	private int lastCommandCount = -1;
+	private Object lastKeyTable;
+	private int lastKeyCount = -1;
+	private int lastKeyHash;
+	private Object lastMacroTable;
+	private int lastMacroCount = -1;
+	private int lastMacroHash;
+	private long lastContentCheckMillis;
+
+	ShortcutIndex() {
+		int mask;
+		try {
+			mask = Toolkit.getDefaultToolkit().getMenuShortcutKeyMask();
+		} catch (Exception e) {
+			// Can happen if headless
+			mask = InputEvent.CTRL_MASK;
+		}
+		menuShortcutModifier = (mask & InputEvent.META_MASK) != 0 ? META : CTRL;
+	}
+
+	/**
+	 * Pack a keycode and extended modifiers (as returned by {@link InputEvent#getModifiersEx()}) into a single int.
+	 * @param keyCode
+	 * @param modifiersEx
+	 * @return
+	 */
+	static int pack(int keyCode, int modifiersEx) {
+		int mods = 0;
+		if ((modifiersEx & InputEvent.SHIFT_DOWN_MASK) != 0)
+			mods |= SHIFT;
+		if ((modifiersEx & InputEvent.CTRL_DOWN_MASK) != 0)
+			mods |= CTRL;
+		if ((modifiersEx & (InputEvent.ALT_DOWN_MASK | InputEvent.ALT_GRAPH_DOWN_MASK)) != 0)
+			mods |= ALT;
+		if ((modifiersEx & InputEvent.META_DOWN_MASK) != 0)
+			mods |= META;
+		return packCompact(keyCode, mods);
+	}
+
+	private static int packCompact(int keyCode, int mods) {
+		return (keyCode << 4) | (mods & 0xF);
+	}
+
+	/**
+	 * Get the command for a key event.
+	 * @param event
+	 * @return the command name, or null if the key combination isn't a known shortcut
+	 */
+	String lookup(KeyEvent event) {
+		return lookup(pack(event.getKeyCode(), event.getModifiersEx()));
+	}
+
+	/**
+	 * Get the command for a packed key, as created with {@link #pack(int, int)}.
+	 * @param packedKey
+	 * @return the command name, or null if the key combination isn't a known shortcut
+	 */
+	String lookup(int packedKey) {
+		String command = menuShortcuts.get(packedKey);
+		if (command == null)
+			command = keyShortcuts.get(packedKey);
+		if (command == null)
+			command = macroShortcuts.get(packedKey);
+		return command;
+	}
+
+	/**
+	 * Rebuild any part of the index where the corresponding ImageJ menus or shortcut tables have changed.
+	 * The menus and shortcut tables are compared by identity and size, which is cheap enough to do for every chord.
+	 * A shortcut remapped to another command doesn't change the size, so at most every {@value #CONTENT_CHECK_MILLIS} ms
+	 * the tables' hash codes are compared as well. This takes the tables' locks and is proportional to their size,
+	 * so isn't done on every call.
+	 */
+	void refreshIfChanged() {
+		try {
+			MenuBar menuBar = Menus.getMenuBar();
+			Map<?, ?> commands = Menus.getCommands();
+			int commandCount = commands == null ? 0 : commands.size();
+			if (menuBar != lastMenuBar || commandCount != lastCommandCount) {
+				menuShortcuts.clear();
+				if (menuBar != null) {
+					for (int i = 0; i < menuBar.getMenuCount(); i++)
+						addMenuShortcuts(menuBar.getMenu(i));
+				}
+				lastMenuBar = menuBar;
+				lastCommandCount = commandCount;
+			}
+
+			long now = System.currentTimeMillis();
+			boolean checkContents = now - lastContentCheckMillis >= CONTENT_CHECK_MILLIS;
+			if (checkContents)
+				lastContentCheckMillis = now;
+
+			Hashtable<?, ?> keys = Menus.getShortcuts();
+			int keyCount = keys == null ? 0 : keys.size();
+			if (keys != lastKeyTable || keyCount != lastKeyCount || (checkContents && hash(keys) != lastKeyHash)) {
+				addTableShortcuts(keyShortcuts, keys);
+				lastKeyTable = keys;
+				lastKeyCount = keyCount;
+				lastKeyHash = hash(keys);
+			}
+
+			Hashtable<?, ?> macros = Menus.getMacroShortcuts();
+			int macroCount = macros == null ? 0 : macros.size();
+			if (macros != lastMacroTable || macroCount != lastMacroCount || (checkContents && hash(macros) != lastMacroHash)) {
+				addTableShortcuts(macroShortcuts, macros);
+				lastMacroTable = macros;
+				lastMacroCount = macroCount;
+				lastMacroHash = hash(macros);
+			}
+		} catch (RuntimeException e) {
+			// Menus can be modified from other threads - we'll try again next time
+			lastMenuBar = null;
+			lastKeyTable = null;
+			lastMacroTable = null;
+			IJ.log("Unable to index shortcuts: " + e.getLocalizedMessage());
+		}
+	}
+
+	private static int hash(Hashtable<?, ?> table) {
+		return table == null ? 0 : table.hashCode();
+	}
+
+	private void addMenuShortcuts(Menu menu) {
+		if (menu == null)
+			return;
+		for (int i = 0; i < menu.getItemCount(); i++) {
+			MenuItem item = menu.getItem(i);
+			if (item instanceof Menu) {
+				addMenuShortcuts((Menu)item);
+				continue;
+			}
+			MenuShortcut shortcut = item == null ? null : item.getShortcut();
+			if (shortcut == null)
+				continue;
+			int mods = menuShortcutModifier;
+			if (shortcut.usesShiftModifier())
+				mods |= SHIFT;
+			String command = item.getActionCommand();
+			if (command == null)
+				command = item.getLabel();
+			// Menu order takes priority if a shortcut is duplicated
+			int key = packCompact(shortcut.getKey(), mods);
+			if (menuShortcuts.get(key) == null)
+				menuShortcuts.put(key, command);
+		}
+	}
+
+	private static void addTableShortcuts(IntStringMap map, Hashtable<?, ?> table) {
+		map.clear();
+		if (table == null)
+			return;
+		// toArray is synchronized on the table, so we get a consistent snapshot
+		for (Object o : table.entrySet().toArray()) {
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>)o;
+			if (!(entry.getKey() instanceof Integer) || entry.getValue() == null)
+				continue;
+			int code = (Integer)entry.getKey();
+			int mods = 0;
+			if (code > SHIFT_OFFSET && code < 2 * SHIFT_OFFSET) {
+				code -= SHIFT_OFFSET;
+				mods |= SHIFT;
+			}
+			map.put(packCompact(code, mods), entry.getValue().toString());
+		}
+	}
+
+
+	/**
+	 * Minimal open-addressing map from non-zero int keys to strings, to avoid boxing during lookups.
+	 */
+	static class IntStringMap {
+
+		private int[] keys = new int[64];
+		private String[] values = new String[64];
+		private int size = 0;
+
+		String get(int key) {
+			int mask = keys.length - 1;
+			for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+				int k = keys[i];
+				if (k == key)
+					return values[i];
+				if (k == 0)
+					return null;
+			}
+		}
+
+		void put(int key, String value) {
+			if (key == 0)
+				throw new IllegalArgumentException("Key must not be 0");
+			if ((size + 1) * 2 > keys.length)
+				resize(keys.length * 2);
+			int mask = keys.length - 1;
+			for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+				int k = keys[i];
+				if (k == key) {
+					values[i] = value;
+					return;
+				}
+				if (k == 0) {
+					keys[i] = key;
+					values[i] = value;
+					size++;
+					return;
+				}
+			}
+		}
+
+		void clear() {
+			Arrays.fill(keys, 0);
+			Arrays.fill(values, null);
+			size = 0;
+		}
+
+		int size() {
+			return size;
+		}
+
+		private void resize(int capacity) {
+			int[] oldKeys = keys;
+			String[] oldValues = values;
+			keys = new int[capacity];
+			values = new String[capacity];
+			size = 0;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != 0)
+					put(oldKeys[i], oldValues[i]);
+			}
+		}
+
+		private static int mix(int key) {
+			int h = key * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+
+	}
+
+}
@@ -0,0 +1,443 @@
+package io.github.petebankhead.bioimage;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.GraphicsEnvironment;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+
+import io.github.petebankhead.bioimage.InputDisplayPlugin.KeyEventLogger;
+import io.github.petebankhead.bioimage.InputDisplayPlugin.RoundedJPanel;
+
+/**
+ * Replay synthetic or recorded key events through the keypress overlay, without needing anyone at a keyboard.
+ * <p>
+ * Events are fed to the {@link KeyEventLogger} on the Event Dispatch Thread at the times given by a {@link Scenario},
+ * and the overlay is painted after each one.
+ * The replay reports the throughput, the bytes allocated on the EDT, and how many updates were late
+ * (handled more than one frame after they were due) or dropped (because too many were already waiting).
+ * <p>
+ * This needs a display, but a virtual one is fine - e.g. run with {@code xvfb-run ./gradlew replayKeys} on Linux.
+ * <p>
+ * Recorded sequences are text files with one event per line, in the form
+ * <pre>
+ *   &lt;millis&gt; PRESSED|RELEASED &lt;keyCode&gt; [modifiersEx]
+ * </pre>
+ * where events are in time order, and blank lines and lines starting with # are ignored.
+ *
+ * @author Pete Bankhead
+ */
+class KeyEventReplay {
+
+	/**
+	 * Updates handled later than this after they were due are counted as late.
+	 */
+	private static final long LATE_NANOS = TimeUnit.MILLISECONDS.toNanos(16);
+
+	/**
+	 * Maximum number of events waiting on the EDT before new ones are dropped.
+	 */
+	private static final int MAX_PENDING = 256;
+
+	/**
+	 * Run the standard scenarios, plus any recorded sequences given as arguments.
+	 * The optional argument {@code --speed <factor>} scales the replay rate.
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		if (GraphicsEnvironment.isHeadless()) {
+			System.err.println("A display is needed to replay key events - try running with xvfb-run");
+			System.exit(2);
+		}
+
+		double speed = 1.0;
+		List<Scenario> scenarios = new ArrayList<>();
+		scenarios.add(Scenario.typingBurst(500, 50));
+		scenarios.add(Scenario.heldModifierRepeat(300, 30));
+		scenarios.add(Scenario.chordSwitching(200, 20));
+		for (int i = 0; i < args.length; i++) {
+			if ("--speed".equals(args[i]) && i < args.length-1)
+				speed = Double.parseDouble(args[++i]);
+			else
+				scenarios.add(Scenario.read(new File(args[i])));
+		}
+
+		KeyEventReplay replay = new KeyEventReplay();
+		long dropped = 0;
+		try {
+			System.out.println(Result.HEADER);
+			for (Scenario scenario : scenarios) {
+				// Warm up first, so that we aren't measuring class loading & compilation
+				replay.replay(scenario, speed);
+				Result result = replay.replay(scenario, speed);
+				System.out.println(result);
+				dropped += result.dropped;
+			}
+		} finally {
+			replay.close();
+		}
+		System.exit(dropped == 0 ? 0 : 1);
+	}
+
+
+	private JFrame frame;
+	private JPanel container;
+	private KeyEventLogger logger;
+
+	private long edtThreadId;
+
+	KeyEventReplay() throws InvocationTargetException, InterruptedException {
+		SwingUtilities.invokeAndWait(() -> {
+			frame = new JFrame();
+			frame.setUndecorated(true);
+			frame.setBackground(new Color(0, 0, 0, 0));
+			container = new RoundedJPanel(50);
+			container.setOpaque(false);
+			container.setLayout(new BorderLayout());
+			frame.setContentPane(container);
+			logger = new InputDisplayPlugin().createOverlayContent(container, true);
+			frame.setSize(300, 200);
+			frame.setVisible(true);
+			edtThreadId = Thread.currentThread().getId();
+		});
+	}
+
+	/**
+	 * Replay a scenario.
+	 * @param scenario the events to replay
+	 * @param speed factor by which to scale the replay rate
+	 * @return
+	 * @throws InvocationTargetException
+	 * @throws InterruptedException
+	 */
+	Result replay(Scenario scenario, double speed) throws InvocationTargetException, InterruptedException {
+		AtomicInteger pending = new AtomicInteger();
+		int[] late = new int[1];
+		long[] maxLatency = new long[1];
+		int dropped = 0;
+
+		// Flush anything left from before
+		SwingUtilities.invokeAndWait(() -> {});
+		long allocatedBefore = getAllocatedBytes(edtThreadId);
+		long startTime = System.nanoTime();
+
+		for (int i = 0; i < scenario.size; i++) {
+			long due = startTime + (long)(scenario.timesNanos[i] / speed);
+			long wait = due - System.nanoTime();
+			if (wait > 0)
+				LockSupport.parkNanos(wait);
+
+			if (pending.get() >= MAX_PENDING) {
+				dropped++;
+				continue;
+			}
+
+			// Create the event here, so that it doesn't count towards allocations on the EDT
+			KeyEvent event = new KeyEvent(container, scenario.ids[i], System.currentTimeMillis(),
+					scenario.modifiers[i], scenario.keyCodes[i], KeyEvent.CHAR_UNDEFINED);
+			pending.incrementAndGet();
+			SwingUtilities.invokeLater(() -> {
+				logger.postProcessKeyEvent(event);
+				container.paintImmediately(0, 0, container.getWidth(), container.getHeight());
+				long latency = System.nanoTime() - due;
+				if (latency > LATE_NANOS)
+					late[0]++;
+				if (latency > maxLatency[0])
+					maxLatency[0] = latency;
+				pending.decrementAndGet();
+			});
+		}
+
+		SwingUtilities.invokeAndWait(() -> {});
+		long elapsed = System.nanoTime() - startTime;
+		long allocated = getAllocatedBytes(edtThreadId) - allocatedBefore;
+
+		return new Result(scenario.name, scenario.size, dropped, late[0], maxLatency[0], elapsed, allocated);
+	}
+
+	void close() throws InvocationTargetException, InterruptedException {
+		SwingUtilities.invokeAndWait(() -> frame.dispose());
+	}
+
+	/**
+	 * Get the bytes allocated by a thread, if the JVM supports it.
+	 * @param threadId
+	 * @return the allocated bytes, or -1 if unavailable
+	 */
+	private static long getAllocatedBytes(long threadId) {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(threadId);
+		return -1;
+	}
+
+
+	/**
+	 * Summary of a single replay.
+	 */
+	static class Result {
+
+		static final String HEADER = String.format("%-24s %8s %8s %8s %12s %12s %14s",
+				"Scenario", "Events", "Dropped", "Late", "Max lat (ms)", "Events/s", "EDT alloc MB/s");
+
+		final String name;
+		final int events;
+		final int dropped;
+		final int late;
+		final long maxLatencyNanos;
+		final long elapsedNanos;
+		final long allocatedBytes;
+
+		Result(String name, int events, int dropped, int late, long maxLatencyNanos, long elapsedNanos, long allocatedBytes) {
+			this.name = name;
+			this.events = events;
+			this.dropped = dropped;
+			this.late = late;
+			this.maxLatencyNanos = maxLatencyNanos;
+			this.elapsedNanos = elapsedNanos;
+			this.allocatedBytes = allocatedBytes;
+		}
+
+		double getEventsPerSecond() {
+			return (events - dropped) * 1e9 / elapsedNanos;
+		}
+
+		double getAllocatedMBPerSecond() {
+			if (allocatedBytes < 0)
+				return Double.NaN;
+			return allocatedBytes / (1024.0 * 1024.0) * 1e9 / elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "%-24s %8d %8d %8d %12.2f %12.1f %14.2f",
+					name, events, dropped, late, maxLatencyNanos / 1e6, getEventsPerSecond(), getAllocatedMBPerSecond());
+		}
+
+	}
+
+
+	/**
+	 * A sequence of key events, with the time at which each should be replayed.
+	 */
+	static class Scenario {
+
+		private final String name;
+
+		private int size = 0;
+		private int[] ids = new int[64];
+		private int[] keyCodes = new int[64];
+		private int[] modifiers = new int[64];
+		private long[] timesNanos = new long[64];
+
+		/**
+		 * Current modifiers, based upon the modifier keys pressed so far
+		 */
+		private int currentModifiers = 0;
+
+		Scenario(String name) {
+			this.name = name;
+		}
+
+		String getName() {
+			return name;
+		}
+
+		int size() {
+			return size;
+		}
+
+		/**
+		 * Add a key event with explicit modifiers.
+		 */
+		Scenario add(long timeNanos, int id, int keyCode, int modifiersEx) {
+			if (size == ids.length) {
+				int n = size * 2;
+				ids = Arrays.copyOf(ids, n);
+				keyCodes = Arrays.copyOf(keyCodes, n);
+				modifiers = Arrays.copyOf(modifiers, n);
+				timesNanos = Arrays.copyOf(timesNanos, n);
+			}
+			ids[size] = id;
+			keyCodes[size] = keyCode;
+			modifiers[size] = modifiersEx;
+			timesNanos[size] = timeNanos;
+			size++;
+			return this;
+		}
+
+		/**
+		 * Add a key press, updating the modifiers if needed.
+		 */
+		Scenario press(long timeNanos, int keyCode) {
+			currentModifiers |= getModifierMask(keyCode);
+			return add(timeNanos, KeyEvent.KEY_PRESSED, keyCode, currentModifiers);
+		}
+
+		/**
+		 * Add a key release, updating the modifiers if needed.
+		 */
+		Scenario release(long timeNanos, int keyCode) {
+			currentModifiers &= ~getModifierMask(keyCode);
+			return add(timeNanos, KeyEvent.KEY_RELEASED, keyCode, currentModifiers);
+		}
+
+		private static int getModifierMask(int keyCode) {
+			switch (keyCode) {
+			case KeyEvent.VK_SHIFT:
+				return InputEvent.SHIFT_DOWN_MASK;
+			case KeyEvent.VK_CONTROL:
+				return InputEvent.CTRL_DOWN_MASK;
+			case KeyEvent.VK_ALT:
+				return InputEvent.ALT_DOWN_MASK;
+			case KeyEvent.VK_META:
+				return InputEvent.META_DOWN_MASK;
+			default:
+				return 0;
+			}
+		}
+
+		/**
+		 * Fast typing, where each key is released after the next one has been pressed.
+		 * @param nKeys number of keys to type
+		 * @param keysPerSecond typing rate
+		 * @return
+		 */
+		static Scenario typingBurst(int nKeys, double keysPerSecond) {
+			Scenario scenario = new Scenario("Typing burst");
+			String text = "the quick brown fox jumps over the lazy dog ";
+			long interval = (long)(1e9 / keysPerSecond);
+			long t = 0;
+			int previous = -1;
+			for (int i = 0; i < nKeys; i++) {
+				char c = text.charAt(i % text.length());
+				int code = c == ' ' ? KeyEvent.VK_SPACE : KeyEvent.getExtendedKeyCodeForChar(c);
+				if (previous == code) {
+					// Can't roll over onto the same key
+					scenario.release(t, previous);
+					scenario.press(t, code);
+				} else {
+					scenario.press(t, code);
+					if (previous >= 0)
+						scenario.release(t + interval / 2, previous);
+				}
+				previous = code;
+				t += interval;
+			}
+			if (previous >= 0)
+				scenario.release(t, previous);
+			return scenario;
+		}
+
+		/**
+		 * Hold Ctrl and Shift while a key auto-repeats.
+		 * @param nRepeats number of repeated presses
+		 * @param repeatsPerSecond auto-repeat rate
+		 * @return
+		 */
+		static Scenario heldModifierRepeat(int nRepeats, double repeatsPerSecond) {
+			Scenario scenario = new Scenario("Held modifier repeat");
+			long interval = (long)(1e9 / repeatsPerSecond);
+			long t = 0;
+			scenario.press(t, KeyEvent.VK_CONTROL);
+			scenario.press(t += interval, KeyEvent.VK_SHIFT);
+			for (int i = 0; i < nRepeats; i++)
+				scenario.press(t += interval, KeyEvent.VK_Z);
+			scenario.release(t += interval, KeyEvent.VK_Z);
+			scenario.release(t += interval, KeyEvent.VK_SHIFT);
+			scenario.release(t += interval, KeyEvent.VK_CONTROL);
+			return scenario;
+		}
+
+		/**
+		 * Hold Ctrl and switch rapidly between different chords, toggling Shift as well.
+		 * @param nChords number of chords
+		 * @param chordsPerSecond rate at which chords change
+		 * @return
+		 */
+		static Scenario chordSwitching(int nChords, double chordsPerSecond) {
+			Scenario scenario = new Scenario("Chord switching");
+			int[] keys = {KeyEvent.VK_C, KeyEvent.VK_V, KeyEvent.VK_D, KeyEvent.VK_A, KeyEvent.VK_Z, KeyEvent.VK_E};
+			long interval = (long)(1e9 / chordsPerSecond);
+			long step = interval / 4;
+			long t = 0;
+			scenario.press(t, KeyEvent.VK_CONTROL);
+			for (int i = 0; i < nChords; i++) {
+				int key = keys[i % keys.length];
+				boolean shift = i % 2 == 1;
+				if (shift)
+					scenario.press(t + step, KeyEvent.VK_SHIFT);
+				scenario.press(t + step * 2, key);
+				scenario.release(t + step * 3, key);
+				if (shift)
+					scenario.release(t + step * 3, KeyEvent.VK_SHIFT);
+				t += interval;
+			}
+			scenario.release(t, KeyEvent.VK_CONTROL);
+			return scenario;
+		}
+
+		/**
+		 * Read a recorded sequence of key events.
+		 * @param file
+		 * @return
+		 * @throws IOException
+		 */
+		static Scenario read(File file) throws IOException {
+			Scenario scenario = new Scenario(file.getName());
+			try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+				String line;
+				int lineNumber = 0;
+				long startNanos = 0;
+				while ((line = reader.readLine()) != null) {
+					lineNumber++;
+					line = line.trim();
+					if (line.isEmpty() || line.startsWith("#"))
+						continue;
+					String[] parts = line.split("\\s+");
+					try {
+						// Replay relative to the first event
+						long timeNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(parts[0]));
+						if (scenario.size == 0)
+							startNanos = timeNanos;
+						timeNanos -= startNanos;
+						int id;
+						if ("PRESSED".equalsIgnoreCase(parts[1]))
+							id = KeyEvent.KEY_PRESSED;
+						else if ("RELEASED".equalsIgnoreCase(parts[1]))
+							id = KeyEvent.KEY_RELEASED;
+						else
+							throw new IOException("Unknown event type '" + parts[1] + "' on line " + lineNumber);
+						int keyCode = Integer.parseInt(parts[2]);
+						int modifiersEx = parts.length > 3 ? Integer.parseInt(parts[3]) : 0;
+						scenario.add(timeNanos, id, keyCode, modifiersEx);
+					} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+						throw new IOException("Unable to parse line " + lineNumber + ": " + line, e);
+					}
+				}
+			}
+			return scenario;
+		}
+
+	}
+
+}
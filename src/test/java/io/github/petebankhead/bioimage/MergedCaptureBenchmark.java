@@ -0,0 +1,125 @@
+package io.github.petebankhead.bioimage;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compare ways of combining window captures into a single merged screenshot.
+ * <p>
+ * Synthetic captures (TYPE_INT_RGB, as returned by {@link java.awt.Robot}) are placed at random positions on a
+ * virtual screen, and merged using
+ * <ul>
+ *   <li>{@link Graphics2D#drawImage(java.awt.Image, int, int, java.awt.image.ImageObserver)} onto an ARGB canvas</li>
+ *   <li>a {@link RasterCompositor} with an ARGB canvas</li>
+ *   <li>a {@link RasterCompositor} with an RGB canvas</li>
+ * </ul>
+ * and the median time of each method is reported. No display is needed.
+ * (That the methods give the same output is checked by {@link RasterCompositorTest}.)
+ * <p>
+ * Optional arguments are the window counts to test, e.g. {@code ./gradlew benchmarkMerge -PbenchmarkArgs="10 50"}.
+ *
+ * @author Pete Bankhead
+ */
+class MergedCaptureBenchmark {
+
+	private static final int SCREEN_WIDTH = 2560;
+	private static final int SCREEN_HEIGHT = 1440;
+
+	private static final int WARMUP = 10;
+	private static final int REPEATS = 31;
+
+	public static void main(String[] args) {
+		int[] counts = {10, 20, 30, 40, 50};
+		if (args.length > 0)
+			counts = Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+
+		// Warm up first, so that we aren't measuring compilation
+		for (int n : counts)
+			run(n, false);
+
+		System.out.println(String.format("%8s %14s %14s %14s %10s", "Windows", "drawImage (ms)", "ARGB (ms)", "RGB (ms)", "Speedup"));
+		for (int n : counts)
+			run(n, true);
+	}
+
+	/**
+	 * Merge a number of random windows using each method.
+	 * @param n number of windows
+	 * @param print if true, print the timings
+	 */
+	private static void run(int n, boolean print) {
+		Random random = new Random(n);
+		BufferedImage[] images = new BufferedImage[n];
+		Rectangle[] windowBounds = new Rectangle[n];
+		Rectangle bounds = new Rectangle();
+		for (int i = 0; i < n; i++) {
+			Rectangle r = new Rectangle(
+					random.nextInt(SCREEN_WIDTH - 200), random.nextInt(SCREEN_HEIGHT - 200),
+					200 + random.nextInt(800), 150 + random.nextInt(600));
+			windowBounds[i] = r;
+			images[i] = createCapture(r.width, r.height, random);
+			if (i == 0)
+				bounds.setBounds(r);
+			else
+				bounds.add(r);
+		}
+
+		double msDraw = time(() -> drawImage(images, windowBounds, bounds));
+		double msARGB = time(() -> compose(images, windowBounds, bounds, true));
+		double msRGB = time(() -> compose(images, windowBounds, bounds, false));
+		if (print)
+			System.out.println(String.format(Locale.US, "%8d %14.2f %14.2f %14.2f %9.1fx",
+					n, msDraw, msARGB, msRGB, msDraw / Math.min(msARGB, msRGB)));
+	}
+
+	static BufferedImage createCapture(int width, int height, Random random) {
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		int[] pixels = getPixels(img);
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = random.nextInt() & 0xffffff;
+		return img;
+	}
+
+	static BufferedImage drawImage(BufferedImage[] images, Rectangle[] windowBounds, Rectangle bounds) {
+		BufferedImage canvas = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g2d = canvas.createGraphics();
+		for (int i = 0; i < images.length; i++)
+			g2d.drawImage(images[i], windowBounds[i].x - bounds.x, windowBounds[i].y - bounds.y, null);
+		g2d.dispose();
+		return canvas;
+	}
+
+	static BufferedImage compose(BufferedImage[] images, Rectangle[] windowBounds, Rectangle bounds, boolean transparent) {
+		RasterCompositor compositor = new RasterCompositor(bounds, transparent);
+		// Later windows are on top, so add them first
+		for (int i = images.length - 1; i >= 0; i--)
+			compositor.addBelow(images[i], windowBounds[i].x, windowBounds[i].y);
+		return compositor.getImage();
+	}
+
+	static int[] getPixels(BufferedImage img) {
+		return ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+	}
+
+	/**
+	 * Get the median time to run a task, in milliseconds.
+	 */
+	private static double time(Runnable task) {
+		for (int i = 0; i < WARMUP; i++)
+			task.run();
+		long[] times = new long[REPEATS];
+		for (int i = 0; i < REPEATS; i++) {
+			long start = System.nanoTime();
+			task.run();
+			times[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(times);
+		return times[REPEATS / 2] / 1e6;
+	}
+
+}
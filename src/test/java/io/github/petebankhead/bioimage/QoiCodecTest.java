@@ -0,0 +1,199 @@
+package io.github.petebankhead.bioimage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Check that QOI images are encoded as the specification requires, and read back unchanged.
+ *
+ * @author Pete Bankhead
+ */
+class QoiCodecTest {
+
+	private static final int HEADER_SIZE = 14;
+
+	private static final byte[] END_MARKER = {0, 0, 0, 0, 0, 0, 0, 1};
+
+	@Test
+	void roundTripRGB() throws IOException {
+		BufferedImage img = createTestImage(BufferedImage.TYPE_INT_RGB, 157, 93, 1);
+		BufferedImage imgRead = roundTrip(img);
+		assertEquals(BufferedImage.TYPE_INT_RGB, imgRead.getType());
+		assertSameRGB(img, imgRead, false);
+	}
+
+	@Test
+	void roundTripARGB() throws IOException {
+		BufferedImage img = createTestImage(BufferedImage.TYPE_INT_ARGB, 131, 77, 2);
+		BufferedImage imgRead = roundTrip(img);
+		assertEquals(BufferedImage.TYPE_INT_ARGB, imgRead.getType());
+		assertSameRGB(img, imgRead, true);
+	}
+
+	@Test
+	void roundTripOtherType() throws IOException {
+		// Converted to packed pixels before encoding
+		BufferedImage img = createTestImage(BufferedImage.TYPE_3BYTE_BGR, 64, 48, 3);
+		BufferedImage imgRead = roundTrip(img);
+		assertEquals(BufferedImage.TYPE_INT_RGB, imgRead.getType());
+		assertSameRGB(img, imgRead, false);
+	}
+
+	@Test
+	void roundTripSubImage() throws IOException {
+		BufferedImage img = createTestImage(BufferedImage.TYPE_INT_ARGB, 200, 150, 4);
+		BufferedImage imgSub = img.getSubimage(37, 21, 101, 89);
+		BufferedImage imgRead = roundTrip(imgSub);
+		assertEquals(101, imgRead.getWidth());
+		assertEquals(89, imgRead.getHeight());
+		assertSameRGB(imgSub, imgRead, true);
+	}
+
+	@Test
+	void longRuns() throws IOException {
+		// Runs can only cover 62 pixels, so this needs several - including one that stops part way
+		int width = 1000;
+		BufferedImage img = new BufferedImage(width, 3, BufferedImage.TYPE_INT_RGB);
+		for (int x = 0; x < width; x++) {
+			img.setRGB(x, 0, 0x123456);
+			img.setRGB(x, 1, x < 500 ? 0x123456 : 0xabcdef);
+			img.setRGB(x, 2, 0xabcdef);
+		}
+		byte[] bytes = encode(img);
+		// One op for each colour change, and one per 62 pixels of each run
+		assertTrue(bytes.length < HEADER_SIZE + END_MARKER.length + 64, "Runs weren't used: " + bytes.length + " bytes");
+		assertSameRGB(img, decode(bytes), false);
+	}
+
+	@Test
+	void encodingOps() throws IOException {
+		int[] rgb = {
+				0x0a0a0a, // Luma from the initial black
+				0x0b0a09, // Diff
+				0x14191e, // Luma
+				0x0a0a0a, // Index (first pixel again)
+				0xc80064, // RGB
+				0xc80064, // Run of 2
+				0xc80064
+		};
+		BufferedImage img = new BufferedImage(rgb.length, 1, BufferedImage.TYPE_INT_RGB);
+		img.setRGB(0, 0, rgb.length, 1, rgb, 0, rgb.length);
+		byte[] bytes = encode(img);
+
+		byte[] expectedHeader = {'q', 'o', 'i', 'f', 0, 0, 0, (byte)rgb.length, 0, 0, 0, 1, 3, 0};
+		assertArrayEquals(expectedHeader, Arrays.copyOf(bytes, HEADER_SIZE));
+		byte[] expectedData = {
+				(byte)0xaa, (byte)0x88,
+				(byte)0x79,
+				(byte)0xaf, (byte)0x2e,
+				(byte)0x0b,
+				(byte)0xfe, (byte)0xc8, 0x00, 0x64,
+				(byte)0xc1
+		};
+		assertArrayEquals(expectedData, Arrays.copyOfRange(bytes, HEADER_SIZE, bytes.length - END_MARKER.length));
+		assertArrayEquals(END_MARKER, Arrays.copyOfRange(bytes, bytes.length - END_MARKER.length, bytes.length));
+		assertSameRGB(img, decode(bytes), false);
+	}
+
+	@Test
+	void encodingAlpha() throws IOException {
+		BufferedImage img = new BufferedImage(2, 1, BufferedImage.TYPE_INT_ARGB);
+		img.setRGB(0, 0, 0x80102030);
+		img.setRGB(1, 0, 0x80112030);
+		byte[] bytes = encode(img);
+		assertEquals(4, bytes[12]);
+		byte[] expectedData = {
+				(byte)0xff, 0x10, 0x20, 0x30, (byte)0x80,
+				(byte)0x7a // Diff, since the alpha is unchanged
+		};
+		assertArrayEquals(expectedData, Arrays.copyOfRange(bytes, HEADER_SIZE, bytes.length - END_MARKER.length));
+		assertSameRGB(img, decode(bytes), true);
+	}
+
+	/**
+	 * Create an image that exercises all the encoding ops: smooth gradients (diff and luma),
+	 * noise (RGB), a small palette (index) and flat regions (runs).
+	 */
+	private static BufferedImage createTestImage(int type, int width, int height, long seed) {
+		Random random = new Random(seed);
+		boolean alpha = type == BufferedImage.TYPE_INT_ARGB;
+		int[] palette = new int[8];
+		for (int i = 0; i < palette.length; i++)
+			palette[i] = random.nextInt();
+		BufferedImage img = new BufferedImage(width, height, type);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int argb;
+				switch ((y / 8) % 4) {
+				case 0:
+					argb = 0xff000000 | (x & 0xff) << 16 | (y & 0xff) << 8 | ((x + y) & 0xff);
+					break;
+				case 1:
+					argb = random.nextInt();
+					break;
+				case 2:
+					argb = palette[random.nextInt(palette.length)];
+					break;
+				default:
+					argb = x < width / 2 ? 0xff336699 : 0x80996633;
+				}
+				if (!alpha)
+					argb |= 0xff000000;
+				img.setRGB(x, y, argb);
+			}
+		}
+		return img;
+	}
+
+	private static byte[] encode(BufferedImage img) throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		new QoiCodec().write(img, stream);
+		return stream.toByteArray();
+	}
+
+	private static BufferedImage decode(byte[] bytes) throws IOException {
+		File file = File.createTempFile("qoi-test", ".qoi");
+		try {
+			Files.write(file.toPath(), bytes);
+			return QoiCodec.read(file);
+		} finally {
+			Files.deleteIfExists(file.toPath());
+		}
+	}
+
+	private static BufferedImage roundTrip(BufferedImage img) throws IOException {
+		// Reuse an encoder, since that's how it is used when capturing
+		QoiCodec codec = new QoiCodec();
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		codec.write(new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB), stream);
+		stream.reset();
+		codec.write(img, stream);
+		return decode(stream.toByteArray());
+	}
+
+	private static void assertSameRGB(BufferedImage expected, BufferedImage actual, boolean alpha) {
+		assertEquals(expected.getWidth(), actual.getWidth());
+		assertEquals(expected.getHeight(), actual.getHeight());
+		int mask = alpha ? 0xffffffff : 0xffffff;
+		for (int y = 0; y < expected.getHeight(); y++) {
+			for (int x = 0; x < expected.getWidth(); x++) {
+				int e = expected.getRGB(x, y) & mask;
+				int a = actual.getRGB(x, y) & mask;
+				if (e != a)
+					assertEquals(Integer.toHexString(e), Integer.toHexString(a), "Pixel (" + x + ", " + y + ")");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,133 @@
+package io.github.petebankhead.bioimage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Check that {@link RasterCompositor} gives exactly the same result as drawing the images with Java2D.
+ *
+ * @author Pete Bankhead
+ */
+class RasterCompositorTest {
+
+	@Test
+	void overlappingWindowsARGB() {
+		checkRandomWindows(30, new Rectangle(0, 0, 1600, 900), false, true, 1);
+	}
+
+	@Test
+	void overlappingWindowsRGB() {
+		checkRandomWindows(30, new Rectangle(0, 0, 1600, 900), false, false, 2);
+	}
+
+	@Test
+	void windowsPartlyOffCanvasARGB() {
+		checkRandomWindows(20, new Rectangle(-300, 200, 900, 500), true, true, 3);
+	}
+
+	@Test
+	void windowsPartlyOffCanvasRGB() {
+		checkRandomWindows(20, new Rectangle(-300, 200, 900, 500), true, false, 4);
+	}
+
+	@Test
+	void largeWindowsInBands() {
+		// Big enough to be split into bands, if there is more than one processor
+		checkRandomWindows(5, new Rectangle(0, 0, 2560, 1440), false, true, 5);
+	}
+
+	@Test
+	void unusualImageTypes() {
+		Random random = new Random(6);
+		Rectangle bounds = new Rectangle(0, 0, 400, 300);
+		BufferedImage imgBGR = new BufferedImage(200, 150, BufferedImage.TYPE_3BYTE_BGR);
+		Graphics2D g2d = imgBGR.createGraphics();
+		g2d.drawImage(MergedCaptureBenchmark.createCapture(200, 150, random), 0, 0, null);
+		g2d.dispose();
+		// A sub-image has a raster that doesn't start at the beginning of its array
+		BufferedImage imgSub = MergedCaptureBenchmark.createCapture(400, 300, random).getSubimage(50, 40, 220, 180);
+		BufferedImage[] images = {imgBGR, imgSub};
+		Rectangle[] windowBounds = {new Rectangle(20, 30, 200, 150), new Rectangle(150, 100, 220, 180)};
+		for (boolean transparent : new boolean[] {true, false})
+			assertSame(drawImage(images, windowBounds, bounds, transparent), compose(images, windowBounds, bounds, transparent));
+	}
+
+	@Test
+	void windowOutsideCanvas() {
+		Random random = new Random(7);
+		Rectangle bounds = new Rectangle(100, 100, 300, 200);
+		BufferedImage[] images = {MergedCaptureBenchmark.createCapture(100, 100, random)};
+		Rectangle[] windowBounds = {new Rectangle(500, 500, 100, 100)};
+		BufferedImage img = compose(images, windowBounds, bounds, true);
+		for (int p : MergedCaptureBenchmark.getPixels(img))
+			assertEquals(0, p);
+	}
+
+	/**
+	 * Composite random windows (later windows on top), and compare with Java2D.
+	 * @param n number of windows
+	 * @param bounds bounds of the canvas
+	 * @param offCanvas if true, windows may extend beyond the canvas; otherwise the canvas is the union of all the windows
+	 * @param transparent if true, use an ARGB canvas
+	 * @param seed
+	 */
+	private static void checkRandomWindows(int n, Rectangle bounds, boolean offCanvas, boolean transparent, long seed) {
+		Random random = new Random(seed);
+		BufferedImage[] images = new BufferedImage[n];
+		Rectangle[] windowBounds = new Rectangle[n];
+		Rectangle union = new Rectangle();
+		int margin = offCanvas ? 200 : 0;
+		for (int i = 0; i < n; i++) {
+			int width = 50 + random.nextInt(bounds.width / 2);
+			int height = 50 + random.nextInt(bounds.height / 2);
+			int x = bounds.x - margin + random.nextInt(Math.max(1, bounds.width + 2 * margin - width));
+			int y = bounds.y - margin + random.nextInt(Math.max(1, bounds.height + 2 * margin - height));
+			windowBounds[i] = new Rectangle(x, y, width, height);
+			images[i] = MergedCaptureBenchmark.createCapture(width, height, random);
+			if (i == 0)
+				union.setBounds(windowBounds[i]);
+			else
+				union.add(windowBounds[i]);
+		}
+		Rectangle canvasBounds = offCanvas ? bounds : union;
+		if (offCanvas)
+			assertTrue(!bounds.contains(union), "Expected some windows to extend beyond the canvas");
+		assertSame(drawImage(images, windowBounds, canvasBounds, transparent), compose(images, windowBounds, canvasBounds, transparent));
+	}
+
+	private static BufferedImage compose(BufferedImage[] images, Rectangle[] windowBounds, Rectangle bounds, boolean transparent) {
+		BufferedImage img = MergedCaptureBenchmark.compose(images, windowBounds, bounds, transparent);
+		assertEquals(transparent ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB, img.getType());
+		return img;
+	}
+
+	private static BufferedImage drawImage(BufferedImage[] images, Rectangle[] windowBounds, Rectangle bounds, boolean transparent) {
+		BufferedImage canvas = new BufferedImage(bounds.width, bounds.height,
+				transparent ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+		Graphics2D g2d = canvas.createGraphics();
+		for (int i = 0; i < images.length; i++)
+			g2d.drawImage(images[i], windowBounds[i].x - bounds.x, windowBounds[i].y - bounds.y, null);
+		g2d.dispose();
+		return canvas;
+	}
+
+	private static void assertSame(BufferedImage expected, BufferedImage actual) {
+		assertEquals(expected.getWidth(), actual.getWidth());
+		assertEquals(expected.getHeight(), actual.getHeight());
+		int[] pixelsExpected = MergedCaptureBenchmark.getPixels(expected);
+		int[] pixelsActual = MergedCaptureBenchmark.getPixels(actual);
+		for (int i = 0; i < pixelsExpected.length; i++) {
+			if (pixelsExpected[i] != pixelsActual[i])
+				assertEquals(Integer.toHexString(pixelsExpected[i]), Integer.toHexString(pixelsActual[i]),
+						"Pixel (" + (i % expected.getWidth()) + ", " + (i / expected.getWidth()) + ")");
+		}
+	}
+
+}